@@ -0,0 +1,120 @@
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Thread-safe AVL balanced BST.
+ * The tree is never changed in place: a write builds a new root by copying its O(log n) search path
+ * (see PathCopy) and publishes it with a compare-and-set on the root.  Reads take whatever root is
+ * current and walk it without locks, so any number of readers run alongside the writers.
+ * A writer that loses a race to another writer retries on the new root.
+ */
+public class ConcurrentTree<E extends Comparable<? super E>> {
+    private final AtomicReference<Tree.BinaryNode<E>> root = new AtomicReference<>();  // Current version
+    private final String treeName;                                                   // Name of tree
+
+    /**
+     * Create an empty tree
+     * @param label Name of tree
+     */
+    public ConcurrentTree(String label) {
+        treeName = label;
+    }
+
+    /**
+     * Insert into the tree; duplicates are allowed
+     * O(log n), plus a retry for each write that lands in between
+     * @param x the item to insert.
+     */
+    public void bstInsert(E x) {
+        while (true) {
+            Tree.BinaryNode<E> current = root.get();
+            if (root.compareAndSet(current, PathCopy.insert(current, x))) {
+                return;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Remove one occurrence of x
+     * O(log n), plus a retry for each write that lands in between
+     * @param x the item to remove.
+     * @return true if x was found.
+     */
+    public boolean remove(E x) {
+        while (true) {
+            Tree.BinaryNode<E> current = root.get();
+            Tree.BinaryNode<E> updated = PathCopy.remove(current, x);
+            if (updated == current) {
+                return false;  // Not found, nothing to publish
+            }
+            if (root.compareAndSet(current, updated)) {
+                return true;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Determines if item is in tree, without locking
+     * @param item the item to search for.
+     * @return true if found.
+     */
+    public boolean contains(E item) {
+        return PathCopy.contains(root.get(), item);
+    }
+
+    /**
+     * Find the least common ancestor of two elements, without locking
+     * @param a first element
+     * @param b second element
+     * @return element of the ancestor, or null if there is none.
+     */
+    public E lca(E a, E b) {
+        Tree.BinaryNode<E> ancestor = PathCopy.lca(root.get(), a, b);
+        return (ancestor != null) ? ancestor.element : null;
+    }
+
+    /**
+     * Number of elements in the range [a, b], in O(log n) without locking
+     * @param a lowest value
+     * @param b highest value
+     * @return count of elements between a and b.
+     */
+    public int countInRange(E a, E b) {
+        if (a.compareTo(b) > 0) return 0;
+        Tree.BinaryNode<E> current = root.get();  // Both counts must see the same version
+        return PathCopy.countBelow(current, b, true) - PathCopy.countBelow(current, a, false);
+    }
+
+    /**
+     * Visit the elements in [a, b] in order, without locking
+     * All of them come from the version of the tree current when the call started.
+     * @param a      lowest value
+     * @param b      highest value
+     * @param action called for each element.
+     */
+    public void forEachInRange(E a, E b, Consumer<? super E> action) {
+        PathCopy.forEachInRange(root.get(), a, b, action);
+    }
+
+    /**
+     * Number of elements in the tree, O(1)
+     */
+    public int size() {
+        return Tree.size(root.get());
+    }
+
+    /**
+     * Return a string displaying the tree contents as a single line
+     */
+    public String toString2() {
+        Tree.BinaryNode<E> current = root.get();
+        if (current == null)
+            return treeName + " Empty tree";
+
+        StringBuilder sb = new StringBuilder(treeName).append(" ");
+        PathCopy.forEach(current, element -> sb.append(element).append(" "));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,180 @@
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Read-only copy of a BST stored in one array in Eytzinger (breadth first) order.
+ * Slot 1 is the root and the children of slot k are slots 2k and 2k + 1, so a search reads
+ * consecutive slots near the top, where every search starts, and needs no node pointers.
+ * The searches update the slot with arithmetic instead of branching on the comparison,
+ * so the next load does not wait on a mispredicted branch.
+ * The layout is a complete tree over the sorted elements, not the shape of the tree it came from.
+ */
+public class FrozenTree<E extends Comparable<? super E>> {
+    private final Object[] slots;   // Elements by slot, slot 0 is unused
+    private final int size;         // Number of elements
+    private final String treeName;  // Name of tree
+
+    /**
+     * Lay out sorted elements
+     * @param label  Name of tree
+     * @param sorted elements of a BST, in order
+     */
+    FrozenTree(String label, List<E> sorted) {
+        treeName = label;
+        size = sorted.size();
+        slots = new Object[size + 1];
+
+        // Visiting the slots in order hands them out the elements in order
+        int k = first();
+        for (E element : sorted) {
+            slots[k] = element;
+            k = next(k);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private E element(int k) {
+        return (E) slots[k];
+    }
+
+    /**
+     * Slot of the smallest element, 0 if empty
+     */
+    private int first() {
+        if (size == 0) return 0;
+        int k = 1;
+        while (2 * k <= size) {
+            k = 2 * k;
+        }
+        return k;
+    }
+
+    /**
+     * Slot of the in-order successor of slot k, 0 if k is the last one
+     */
+    private int next(int k) {
+        if (2 * k + 1 <= size) {
+            // Leftmost slot of the right subtree
+            k = 2 * k + 1;
+            while (2 * k <= size) {
+                k = 2 * k;
+            }
+            return k;
+        }
+        // Climb while coming from a right child, then once more
+        return k >> (Integer.numberOfTrailingZeros(~k) + 1);
+    }
+
+    /**
+     * Slot of the smallest element not below x, 0 if there is none
+     * The slot goes left or right by adding the comparison, and the answer is found at the end:
+     * it is the last slot where the search went left, which the trailing ones of k record.
+     * This routine runs in O(log n)
+     */
+    private int ceilingSlot(E x) {
+        int k = 1;
+        while (k <= size) {
+            k = 2 * k + (element(k).compareTo(x) < 0 ? 1 : 0);
+        }
+        return k >> (Integer.numberOfTrailingZeros(~k) + 1);
+    }
+
+    /**
+     * Slot of the largest element not above x, 0 if there is none
+     * Mirror of ceilingSlot: the answer is the last slot where the search went right.
+     * This routine runs in O(log n)
+     */
+    private int floorSlot(E x) {
+        int k = 1;
+        while (k <= size) {
+            k = 2 * k + (element(k).compareTo(x) <= 0 ? 1 : 0);
+        }
+        return k >> (Integer.numberOfTrailingZeros(k) + 1);
+    }
+
+    /**
+     * Determines if item is in tree
+     * @param item the item to search for.
+     * @return true if found.
+     */
+    public boolean contains(E item) {
+        int k = ceilingSlot(item);
+        return k != 0 && element(k).compareTo(item) == 0;
+    }
+
+    /**
+     * Smallest element not below x
+     * @param x the bound.
+     * @return the element, or null if there is none.
+     */
+    public E ceiling(E x) {
+        int k = ceilingSlot(x);
+        return (k != 0) ? element(k) : null;
+    }
+
+    /**
+     * Largest element not above x
+     * @param x the bound.
+     * @return the element, or null if there is none.
+     */
+    public E floor(E x) {
+        int k = floorSlot(x);
+        return (k != 0) ? element(k) : null;
+    }
+
+    /**
+     * Find the least common ancestor of two elements in the frozen layout
+     * @param a first element
+     * @param b second element
+     * @return element of the ancestor, or null if there is none.
+     */
+    public E lca(E a, E b) {
+        int k = 1;
+        while (k <= size) {
+            int compareA = a.compareTo(element(k));
+            int compareB = b.compareTo(element(k));
+            if (compareA < 0 && compareB < 0) {
+                k = 2 * k;
+            } else if (compareA > 0 && compareB > 0) {
+                k = 2 * k + 1;
+            } else {
+                return element(k);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Visit the elements in [a, b] in order
+     * The complexity of forEachInRange is O(log n + k) for k elements visited
+     * @param a      lowest value
+     * @param b      highest value
+     * @param action called for each element.
+     */
+    public void forEachInRange(E a, E b, Consumer<? super E> action) {
+        for (int k = ceilingSlot(a); k != 0 && element(k).compareTo(b) <= 0; k = next(k)) {
+            action.accept(element(k));
+        }
+    }
+
+    /**
+     * Number of elements in the tree, O(1)
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return a string displaying the tree contents as a single line
+     */
+    public String toString2() {
+        if (size == 0)
+            return treeName + " Empty tree";
+
+        StringBuilder sb = new StringBuilder(treeName).append(" ");
+        for (int k = first(); k != 0; k = next(k)) {
+            sb.append(element(k)).append(" ");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,651 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Tree of int keys with the same operations as Tree<Integer>, but without boxing.
+ * Nodes are indexes into parallel arrays instead of BinaryNode objects, which makes
+ * a node cost three ints instead of a BinaryNode, an Integer and their headers.
+ * Every operation is iterative, so degenerate trees do not overflow the call stack.
+ */
+public class IntTree {
+    private static final int NIL = -1;            // Index of a missing child
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final int PATH_BATCH = 8192;   // Characters printAllPaths collects before writing
+
+    private int[] key;       // Key stored in each node
+    private int[] left;      // Index of left child of each node
+    private int[] right;     // Index of right child of each node
+    private int used;        // Number of slots handed out, including pruned ones
+    private int root;        // Index of root of tree
+    private String treeName; // Name of tree
+
+    /**
+     * Create an empty tree
+     * @param label Name of tree
+     */
+    public IntTree(String label) {
+        treeName = label;
+        clear(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create tree from list
+     * @param arr     List of elements
+     * @param label   Name of tree
+     * @param ordered true if want an ordered tree
+     */
+    public IntTree(int[] arr, String label, boolean ordered) {
+        treeName = label;
+        clear(Math.max(arr.length, DEFAULT_CAPACITY));
+        if (ordered) {
+            for (int x : arr) {
+                bstInsert(x);
+            }
+        } else root = buildUnordered(arr, 0, arr.length - 1);
+    }
+
+    /**
+     * Drop every node and start over with the given capacity
+     */
+    private void clear(int capacity) {
+        key = new int[capacity];
+        left = new int[capacity];
+        right = new int[capacity];
+        used = 0;
+        root = NIL;
+    }
+
+    /**
+     * Hand out a new leaf node
+     * @param x key of the node.
+     * @return index of the node.
+     */
+    private int newNode(int x) {
+        if (used == key.length) {
+            int capacity = key.length * 2;
+            key = Arrays.copyOf(key, capacity);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+        }
+        key[used] = x;
+        left[used] = NIL;
+        right[used] = NIL;
+        return used++;
+    }
+
+    /**
+     * Build a NON BST tree by inorder
+     * @param arr nodes to be added
+     * @return index of new root
+     */
+    private int buildUnordered(int[] arr, int low, int high) {
+        if (low > high) return NIL;
+        int mid = (low + high) / 2;
+        int curr = newNode(arr[mid]);
+        left[curr] = buildUnordered(arr, low, mid - 1);
+        right[curr] = buildUnordered(arr, mid + 1, high);
+        return curr;
+    }
+
+    /**
+     * Change name of tree
+     * @param name new name of tree
+     */
+    public void changeName(String name) {
+        this.treeName = name;
+    }
+
+    /**
+     * Return a string displaying the tree contents as a tree turned on its side
+     * The layout is the same as Tree.toString
+     */
+    public String toString() {
+        if (root == NIL)
+            return treeName + " Empty tree";
+
+        StringBuilder result = new StringBuilder(treeName).append("\n");
+        char[] indent = new char[64];  // indent[0 .. 8 * depth) is the prefix of the current node
+        IntStack stack = new IntStack();
+
+        // Reverse in-order: right subtree, node, left subtree. Tag is depth * 2 + (1 if right child)
+        int current = root;
+        int tag = 1;
+        while (current != NIL || !stack.isEmpty()) {
+            while (current != NIL) {
+                stack.push(current, tag);
+                int depth = tag >> 1;
+                indent = setIndent(indent, depth, (tag & 1) == 1 ? "        " : " |      ");
+                current = right[current];
+                tag = (depth + 1) * 2 + 1;
+            }
+            tag = stack.peekTag();
+            current = stack.pop();
+            int depth = tag >> 1;
+            boolean isRight = (tag & 1) == 1;
+            result.append(indent, 0, depth * 8);
+            result.append(isRight ? " / " : " \\ ");
+            result.append(key[current]).append("\n");
+
+            indent = setIndent(indent, depth, isRight ? " |      " : "        ");
+            current = left[current];
+            tag = (depth + 1) * 2;
+        }
+        return result.toString();
+    }
+
+    /**
+     * Helper method for toString: write the indent a child of a node at depth adds
+     * @return the indent buffer, grown if needed.
+     */
+    private static char[] setIndent(char[] indent, int depth, String step) {
+        int start = depth * 8;
+        if (start + 8 > indent.length) {
+            indent = Arrays.copyOf(indent, Math.max(indent.length * 2, start + 8));
+        }
+        step.getChars(0, 8, indent, start);
+        return indent;
+    }
+
+    /**
+     * Return a string displaying the tree contents as a single line
+     * This routine runs in O(n)
+     */
+    public String toString2() {
+        if (root == NIL)
+            return treeName + " Empty tree";
+
+        StringBuilder sb = new StringBuilder(treeName).append(" ");
+        IntStack stack = new IntStack();
+        int current = root;
+        while (current != NIL || !stack.isEmpty()) {
+            while (current != NIL) {
+                stack.push(current, 0);
+                current = left[current];
+            }
+            current = stack.pop();
+            sb.append(key[current]).append(" ");
+            current = right[current];
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Same answer as Tree.deepestNode
+     * The complexity of finding the deepest node is O(n)
+     * @return key of the deepest node
+     */
+    public int deepestNode() {
+        if (root == NIL) throw new UnderflowException("IntTree deepestNode");
+
+        int[] deepest = new int[used];  // Deepest node of each finished subtree
+        IntStack stack = new IntStack();
+        int current = root;
+        int last = NIL;
+        while (current != NIL || !stack.isEmpty()) {
+            if (current != NIL) {
+                stack.push(current, 0);
+                current = left[current];
+            } else {
+                int top = stack.peek();
+                if (right[top] != NIL && right[top] != last) {
+                    current = right[top];
+                } else {
+                    stack.pop();
+                    int l = left[top];
+                    int r = right[top];
+                    if (l == NIL && r == NIL) {
+                        // If both are null, current is the deepest
+                        deepest[top] = top;
+                    } else if (l == NIL) {
+                        deepest[top] = deepest[r];
+                    } else if (r == NIL) {
+                        deepest[top] = deepest[l];
+                    } else {
+                        // If both not null, return higher level
+                        deepest[top] = (key[deepest[l]] >= key[deepest[r]]) ? deepest[l] : deepest[r];
+                    }
+                    last = top;
+                }
+            }
+        }
+        return key[deepest[root]];
+    }
+
+    /**
+     * Reverse left and right children of every node
+     * Every node is flipped at once by swapping the child arrays, so this is O(1)
+     */
+    public void flip() {
+        int[] temp = left;
+        left = right;
+        right = temp;
+    }
+
+    /**
+     * Counts number of nodes in specified level
+     * Only nodes above the level are visited
+     * @param level Level in tree, root is zero
+     * @return count of number of nodes at specified level
+     */
+    public int nodesInLevel(int level) {
+        if (root == NIL) return 0;
+
+        int count = 0;
+        IntStack stack = new IntStack();
+        stack.push(root, 0);
+        while (!stack.isEmpty()) {
+            int currentLevel = stack.peekTag();
+            int current = stack.pop();
+            if (currentLevel == level) {
+                count++;
+            } else if (currentLevel < level) {
+                if (left[current] != NIL) stack.push(left[current], currentLevel + 1);
+                if (right[current] != NIL) stack.push(right[current], currentLevel + 1);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Print all paths from root to leaves
+     */
+    public void printAllPaths() {
+        try {
+            printAllPaths(System.out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write all paths from root to leaves, one per line
+     * Paths are collected into batches of about PATH_BATCH characters before being written to out.
+     * @param out where the paths go.
+     * @throws IOException if out fails.
+     */
+    public void printAllPaths(Appendable out) throws IOException {
+        StringBuilder batch = new StringBuilder();
+        try {
+            forEachPath((path, length) -> {
+                for (int i = 0; i < length; i++) {
+                    if (i > 0) batch.append(" ");
+                    batch.append(path[i]);
+                }
+                batch.append(System.lineSeparator());
+                if (batch.length() >= PATH_BATCH) {
+                    try {
+                        out.append(batch);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);  // Let it through the visitor
+                    }
+                    batch.setLength(0);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        out.append(batch);
+    }
+
+    /**
+     * Call visitor once for each path from root to leaf, leftmost path first
+     * One buffer holds the current path, indexed by depth; it is only valid during the call,
+     * so copy it to keep it.
+     * @param visitor gets the keys of each path, root first.
+     */
+    public void forEachPath(PathVisitor visitor) {
+        if (root == NIL) return;
+
+        int[] path = new int[DEFAULT_CAPACITY];
+        IntStack stack = new IntStack();
+        stack.push(root, 0);
+        while (!stack.isEmpty()) {
+            int depth = stack.peekTag();
+            int current = stack.pop();
+            if (depth == path.length) path = Arrays.copyOf(path, depth * 2);
+            path[depth] = key[current];
+
+            if (left[current] == NIL && right[current] == NIL) {
+                visitor.visit(path, depth + 1);
+            } else {
+                // Right first so the left path is visited first
+                if (right[current] != NIL) stack.push(right[current], depth + 1);
+                if (left[current] != NIL) stack.push(left[current], depth + 1);
+            }
+        }
+    }
+
+    /**
+     * Counts all non-null binary search trees embedded in tree
+     * The complexity of countBST is O(n)
+     * @return Count of embedded binary search trees
+     */
+    public int countBST() {
+        if (root == NIL) return 0;
+
+        // Result of each finished subtree, indexed by its root
+        int[] count = new int[used];
+        int[] min = new int[used];
+        int[] max = new int[used];
+        boolean[] isBST = new boolean[used];
+
+        IntStack stack = new IntStack();
+        int current = root;
+        int last = NIL;
+        while (current != NIL || !stack.isEmpty()) {
+            if (current != NIL) {
+                stack.push(current, 0);
+                current = left[current];
+            } else {
+                int top = stack.peek();
+                if (right[top] != NIL && right[top] != last) {
+                    current = right[top];
+                } else {
+                    stack.pop();
+                    int l = left[top];
+                    int r = right[top];
+                    int childCount = (l == NIL ? 0 : count[l]) + (r == NIL ? 0 : count[r]);
+                    if ((l == NIL || isBST[l] && max[l] < key[top]) && (r == NIL || isBST[r] && min[r] > key[top])) {
+                        count[top] = childCount + 1;
+                        min[top] = (l == NIL) ? key[top] : min[l];
+                        max[top] = (r == NIL) ? key[top] : max[r];
+                        isBST[top] = true;
+                    } else {
+                        count[top] = childCount;
+                        isBST[top] = false;
+                    }
+                    last = top;
+                }
+            }
+        }
+        return count[root];
+    }
+
+    /**
+     * Insert into a bst tree; duplicates are allowed
+     * The complexity of bstInsert depends on the tree.  If it is balanced the complexity is O(log n)
+     * @param x the item to insert.
+     */
+    public void bstInsert(int x) {
+        int node = newNode(x);
+        if (root == NIL) {
+            root = node;
+            return;
+        }
+
+        int t = root;
+        while (true) {
+            if (x < key[t]) {
+                if (left[t] == NIL) {
+                    left[t] = node;
+                    return;
+                }
+                t = left[t];
+            } else {
+                if (right[t] == NIL) {
+                    right[t] = node;
+                    return;
+                }
+                t = right[t];
+            }
+        }
+    }
+
+    /**
+     * Determines if item is in tree
+     * @param x the item to search for.
+     * @return true if found.
+     */
+    public boolean contains(int x) {
+        int t = root;
+        while (t != NIL) {
+            if (x < key[t])
+                t = left[t];
+            else if (x > key[t])
+                t = right[t];
+            else
+                return true;    // Match
+        }
+        return false;
+    }
+
+    /**
+     * Remove all paths from tree that sum to less than given value
+     * Pruned slots are only reclaimed by balanceTree
+     * @param sum minimum path sum allowed in final tree
+     */
+    public void pruneK(int sum) {
+        if (root == NIL) return;
+
+        // Tag is the sum the path still needs when it reaches the node
+        IntStack stack = new IntStack();
+        int current = root;
+        int remaining = sum;
+        int last = NIL;
+        while (current != NIL || !stack.isEmpty()) {
+            if (current != NIL) {
+                stack.push(current, remaining);
+                remaining -= key[current];
+                current = left[current];
+            } else {
+                int top = stack.peek();
+                int topRemaining = stack.peekTag();
+                if (right[top] != NIL && right[top] != last) {
+                    remaining = topRemaining - key[top];
+                    current = right[top];
+                } else {
+                    stack.pop();
+                    // If the node is now a leaf and the sum is not reached, unlink it from its parent
+                    if (left[top] == NIL && right[top] == NIL && topRemaining > 0) {
+                        if (stack.isEmpty()) {
+                            root = NIL;
+                        } else if (left[stack.peek()] == top) {
+                            left[stack.peek()] = NIL;
+                        } else {
+                            right[stack.peek()] = NIL;
+                        }
+                    }
+                    last = top;
+                }
+            }
+        }
+    }
+
+    /**
+     * Build tree given inOrder and preOrder traversals.  Each value is unique
+     * Single pass with a stack of nodes still waiting for a right child, O(n)
+     * @param inOrder  List of tree nodes in inorder
+     * @param preOrder List of tree nodes in preorder
+     */
+    public void buildTreeTraversals(int[] inOrder, int[] preOrder) {
+        if (inOrder.length != preOrder.length) {
+            throw new IllegalArgumentException("Input arrays must have the same length");
+        }
+        clear(Math.max(preOrder.length, DEFAULT_CAPACITY));
+        if (preOrder.length == 0) return;
+
+        IntStack stack = new IntStack();
+        root = newNode(preOrder[0]);
+        stack.push(root, 0);
+        int in = 0;
+        for (int pre = 1; pre < preOrder.length; pre++) {
+            int node = newNode(preOrder[pre]);
+            int parent = NIL;
+            // Pop every node whose left subtree is complete; the last one popped gets the right child
+            while (!stack.isEmpty() && key[stack.peek()] == inOrder[in]) {
+                parent = stack.pop();
+                in++;
+            }
+            if (parent != NIL) {
+                right[parent] = node;
+            } else {
+                left[stack.peek()] = node;
+            }
+            stack.push(node, 0);
+        }
+    }
+
+    /**
+     * Sum of every key in the tree
+     * @return the sum, as a long so large trees do not overflow
+     */
+    public long sumAll() {
+        long sum = 0;
+        IntStack stack = new IntStack();
+        if (root != NIL) stack.push(root, 0);
+        while (!stack.isEmpty()) {
+            int current = stack.pop();
+            sum += key[current];
+            if (left[current] != NIL) stack.push(left[current], 0);
+            if (right[current] != NIL) stack.push(right[current], 0);
+        }
+        return sum;
+    }
+
+    /**
+     * Find the least common ancestor of two keys in a BST
+     * @param a first key
+     * @param b second key
+     * @return key of the ancestor
+     * @throws NoSuchElementException if the search path ends before a and b split
+     */
+    public int lca(int a, int b) {
+        int current = root;
+        while (current != NIL) {
+            if (a < key[current] && b < key[current]) {
+                // a and b are in the left subtree
+                current = left[current];
+            } else if (a > key[current] && b > key[current]) {
+                //a and b are in the right subtree
+                current = right[current];
+            } else {
+                // Current node is the LCA, or a,b is equal to the current node
+                return key[current];
+            }
+        }
+        throw new NoSuchElementException("No common ancestor of " + a + " and " + b);
+    }
+
+    /**
+     * Balance the tree
+     * The arrays are rebuilt, which also drops the slots of pruned nodes
+     */
+    public void balanceTree() {
+        // Get the sorted keys of the tree using in-order traversal
+        int[] sorted = new int[used];
+        int n = 0;
+        IntStack stack = new IntStack();
+        int current = root;
+        while (current != NIL || !stack.isEmpty()) {
+            while (current != NIL) {
+                stack.push(current, 0);
+                current = left[current];
+            }
+            current = stack.pop();
+            sorted[n++] = key[current];
+            current = right[current];
+        }
+
+        clear(Math.max(n, DEFAULT_CAPACITY));
+        root = buildBalancedBST(sorted, 0, n - 1);
+    }
+
+    /**
+     * Helper method for balanceTree
+     * @param sorted the sorted keys.
+     * @param start the start of the range.
+     * @param end the end of the range.
+     * @return index of the root of the balanced BST.
+     */
+    private int buildBalancedBST(int[] sorted, int start, int end) {
+        if (start > end) {
+            return NIL;
+        }
+
+        int mid = (start + end) / 2;
+        int node = newNode(sorted[mid]);
+        left[node] = buildBalancedBST(sorted, start, mid - 1);
+        right[node] = buildBalancedBST(sorted, mid + 1, end);
+        return node;
+    }
+
+    /**
+     * In a BST, keep only nodes between range
+     * Only the two boundary paths are walked
+     * @param a lowest value
+     * @param b highest value
+     */
+    public void keepRange(int a, int b) {
+        // Find the new root: the first node on the search path that is in range
+        int current = root;
+        while (current != NIL && (key[current] < a || key[current] > b)) {
+            current = (key[current] < a) ? right[current] : left[current];
+        }
+        root = current;
+        if (root == NIL) {
+            return;
+        }
+
+        for (int node = root; node != NIL; node = left[node]) {
+            while (left[node] != NIL && key[left[node]] < a) {
+                left[node] = right[left[node]];
+            }
+        }
+        for (int node = root; node != NIL; node = right[node]) {
+            while (right[node] != NIL && key[right[node]] > b) {
+                right[node] = left[right[node]];
+            }
+        }
+    }
+
+    /**
+     * Receives the paths of forEachPath without boxing the keys
+     */
+    public interface PathVisitor {
+        /**
+         * @param path   keys of the path in path[0 .. length), root first.
+         * @param length number of keys on the path.
+         */
+        void visit(int[] path, int length);
+    }
+
+    /**
+     * Array-backed stack of node indexes, each with an int tag
+     */
+    private static final class IntStack {
+        private int[] nodes = new int[DEFAULT_CAPACITY];
+        private int[] tags = new int[DEFAULT_CAPACITY];
+        private int size;
+
+        void push(int node, int tag) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                tags = Arrays.copyOf(tags, size * 2);
+            }
+            nodes[size] = node;
+            tags[size] = tag;
+            size++;
+        }
+
+        int peek() {
+            if (size == 0) throw new UnderflowException("IntStack peek");
+            return nodes[size - 1];
+        }
+
+        int peekTag() {
+            if (size == 0) throw new UnderflowException("IntStack peekTag");
+            return tags[size - 1];
+        }
+
+        int pop() {
+            if (size == 0) throw new UnderflowException("IntStack pop");
+            return nodes[--size];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+}
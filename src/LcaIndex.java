@@ -0,0 +1,210 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Least common ancestor queries on a tree of any shape, not only a BST.
+ * Nodes are numbered in preorder.  For two nodes u before v, the ancestor is the parent of the
+ * shallowest node numbered in (u, v], so a sparse table of those minimums answers a query in O(1)
+ * after O(n log n) preprocessing.  Elements are found by equals and hashCode; if an element occurs
+ * more than once, its first node in preorder is used.  Later changes to the tree are not seen.
+ */
+public class LcaIndex<E> {
+    private final Numbering<E> numbering;  // Preorder numbering of the nodes
+    private final int[][] shallowest;      // shallowest[j][i]: shallowest node among i .. i + 2^j - 1
+
+    /**
+     * Index the tree rooted at root
+     * @param root the node that roots the tree.
+     */
+    LcaIndex(Tree.BinaryNode<E> root) {
+        numbering = new Numbering<>(root);
+        int n = numbering.size;
+        int levels = (n == 0) ? 0 : 32 - Integer.numberOfLeadingZeros(n);
+        shallowest = new int[levels][];
+        if (levels == 0) return;
+
+        shallowest[0] = new int[n];
+        for (int i = 0; i < n; i++) {
+            shallowest[0][i] = i;
+        }
+        for (int j = 1; j < levels; j++) {
+            int half = 1 << (j - 1);
+            int[] previous = shallowest[j - 1];
+            int[] level = new int[n - (1 << j) + 1];
+            for (int i = 0; i < level.length; i++) {
+                level[i] = shallower(previous[i], previous[i + half]);
+            }
+            shallowest[j] = level;
+        }
+    }
+
+    private int shallower(int u, int v) {
+        return (numbering.depth[u] <= numbering.depth[v]) ? u : v;
+    }
+
+    /**
+     * Find the least common ancestor of two elements, O(1)
+     * @param a first element
+     * @param b second element
+     * @return element of the ancestor, or null if either element is not in the tree.
+     */
+    public E lca(E a, E b) {
+        Integer u = numbering.ids.get(a);
+        Integer v = numbering.ids.get(b);
+        if (u == null || v == null) return null;
+        return numbering.element(lca(u, v));
+    }
+
+    /**
+     * Helper method for lca
+     * @return preorder number of the ancestor of nodes u and v.
+     */
+    private int lca(int u, int v) {
+        if (u == v) return u;
+        int low = Math.min(u, v) + 1;
+        int high = Math.max(u, v);
+        int j = 31 - Integer.numberOfLeadingZeros(high - low + 1);
+        return numbering.parent[shallower(shallowest[j][low], shallowest[j][high - (1 << j) + 1])];
+    }
+
+    /**
+     * Least common ancestors of many pairs at once, with Tarjan's offline algorithm
+     * One post-order pass merges each finished subtree into its parent's set; a pair is answered
+     * when its second node finishes, by the deepest unfinished ancestor of the first node's set.
+     * The complexity of lcaAll is O(n + k) apart from the near-constant union-find cost.
+     * @param root   the node that roots the tree.
+     * @param first  first element of each pair.
+     * @param second second element of each pair.
+     * @return element of the ancestor of each pair, null where an element is not in the tree.
+     */
+    static <E> List<E> lcaAll(Tree.BinaryNode<E> root, E[] first, E[] second) {
+        if (first.length != second.length) {
+            throw new IllegalArgumentException("Input arrays must have the same length");
+        }
+        Numbering<E> numbering = new Numbering<>(root);
+        int n = numbering.size;
+        int k = first.length;
+
+        // Pairs by node, in compressed rows: pairs of node u are pairIds[start[u] .. start[u + 1])
+        int[] u = new int[k];
+        int[] v = new int[k];
+        int[] start = new int[n + 1];
+        for (int q = 0; q < k; q++) {
+            Integer a = numbering.ids.get(first[q]);
+            Integer b = numbering.ids.get(second[q]);
+            u[q] = (a == null || b == null) ? -1 : a;
+            v[q] = (a == null || b == null) ? -1 : b;
+            if (u[q] >= 0) {
+                start[u[q] + 1]++;
+                start[v[q] + 1]++;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            start[i + 1] += start[i];
+        }
+        int[] pairIds = new int[start[n]];
+        int[] fill = Arrays.copyOf(start, n);
+        for (int q = 0; q < k; q++) {
+            if (u[q] >= 0) {
+                pairIds[fill[u[q]]++] = q;
+                pairIds[fill[v[q]]++] = q;
+            }
+        }
+
+        int[] set = new int[n];       // Union-find parent
+        int[] ancestor = new int[n];  // Ancestor of the set whose representative is the node
+        boolean[] done = new boolean[n];
+        Object[] answers = new Object[k];
+
+        // Going from the last preorder number back to the first is a post-order of the mirrored
+        // tree: each subtree finishes before its parent, and is merged into the parent as it does
+        for (int i = 0; i < n; i++) {
+            set[i] = i;
+            ancestor[i] = i;
+        }
+        for (int w = n - 1; w >= 0; w--) {
+            done[w] = true;
+            for (int p = start[w]; p < start[w + 1]; p++) {
+                int q = pairIds[p];
+                int other = (u[q] == w) ? v[q] : u[q];
+                if (done[other]) {
+                    answers[q] = numbering.element(ancestor[find(set, other)]);
+                }
+            }
+            int up = numbering.parent[w];
+            if (up >= 0) {
+                int merged = find(set, up);
+                set[find(set, w)] = merged;
+                ancestor[merged] = up;
+            }
+        }
+        @SuppressWarnings("unchecked")
+        List<E> result = (List<E>) Arrays.asList(answers);
+        return result;
+    }
+
+    /**
+     * Representative of the set of node, halving the path on the way
+     */
+    private static int find(int[] set, int node) {
+        while (set[node] != node) {
+            set[node] = set[set[node]];
+            node = set[node];
+        }
+        return node;
+    }
+
+    /**
+     * Preorder numbering of a tree: element, depth and parent of each node by number
+     */
+    private static class Numbering<E> {
+        final int size;                 // Number of nodes
+        final Object[] elements;        // Element of each node
+        final int[] depth;              // Depth of each node, the root is 0
+        final int[] parent;             // Parent of each node, -1 for the root
+        final Map<E, Integer> ids;      // Number of the first node holding each element
+
+        Numbering(Tree.BinaryNode<E> root) {
+            int capacity = 16;
+            Object[] elements = new Object[capacity];
+            int[] depth = new int[capacity];
+            int[] parent = new int[capacity];
+            ids = new HashMap<>();
+
+            // Tag of each stacked node: number of its parent
+            NodeStack<E> stack = new NodeStack<>();
+            int n = 0;
+            if (root != null) stack.push(root, -1);
+            while (!stack.isEmpty()) {
+                int up = stack.peekTag();
+                Tree.BinaryNode<E> node = stack.pop();
+                if (n == capacity) {
+                    capacity *= 2;
+                    elements = Arrays.copyOf(elements, capacity);
+                    depth = Arrays.copyOf(depth, capacity);
+                    parent = Arrays.copyOf(parent, capacity);
+                }
+                elements[n] = node.element;
+                parent[n] = up;
+                depth[n] = (up < 0) ? 0 : depth[up] + 1;
+                ids.putIfAbsent(node.element, n);
+
+                // Right first so the left subtree gets the lower numbers
+                if (node.right != null) stack.push(node.right, n);
+                if (node.left != null) stack.push(node.left, n);
+                n++;
+            }
+            this.size = n;
+            this.elements = elements;
+            this.depth = depth;
+            this.parent = parent;
+        }
+
+        @SuppressWarnings("unchecked")
+        E element(int id) {
+            return (E) elements[id];
+        }
+    }
+}
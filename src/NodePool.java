@@ -0,0 +1,111 @@
+/**
+ * Free list of tree nodes that a Tree recycles instead of leaving them to the garbage collector.
+ * Nodes dropped by pruneK, keepRange and the rebuilding operations are kept here, linked through
+ * their right child, and handed out again when the tree needs a new node.
+ */
+public class NodePool<E> {
+    private final int capacity;       // Most nodes kept; released nodes beyond it are left to the GC
+    private Tree.BinaryNode<E> free;  // First free node, the rest follow through right
+    private int size;                 // Number of free nodes
+    private long hits;                // Nodes handed out from the free list
+    private long misses;              // Nodes allocated because the free list was empty
+
+    /**
+     * Create an empty pool
+     * @param capacity most free nodes kept.
+     */
+    NodePool(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Negative pool capacity " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * A recycled leaf holding element
+     * Free nodes are all of the kind the tree uses, since the tree clears the pool whenever it
+     * switches to another kind of node.
+     * @param element the data in the node.
+     * @return the node, or null if the pool is empty and the tree must allocate one.
+     */
+    Tree.BinaryNode<E> obtain(E element) {
+        if (free == null) {
+            misses++;
+            return null;
+        }
+        Tree.BinaryNode<E> node = free;
+        free = node.right;
+        size--;
+        hits++;
+        node.reuse(element);
+        return node;
+    }
+
+    /**
+     * Keep a node that the tree no longer refers to; its children are ignored
+     * @param node the node.
+     */
+    void release(Tree.BinaryNode<E> node) {
+        if (size == capacity) return;
+        node.clear();  // Let the elements it refers to be collected
+        node.right = free;
+        free = node;
+        size++;
+    }
+
+    /**
+     * Keep every node of a subtree that the tree no longer refers to
+     * Left children are rotated up until each node can be released, so nothing is allocated.
+     * @param t the node that roots the subtree.
+     */
+    void releaseAll(Tree.BinaryNode<E> t) {
+        while (t != null && size < capacity) {
+            if (t.left != null) {
+                Tree.BinaryNode<E> left = t.left;
+                t.left = left.right;
+                left.right = t;
+                t = left;
+            } else {
+                Tree.BinaryNode<E> next = t.right;
+                release(t);
+                t = next;
+            }
+        }
+    }
+
+    /**
+     * Drop every free node
+     */
+    void clear() {
+        free = null;
+        size = 0;
+    }
+
+    /**
+     * @return number of nodes handed out from the free list.
+     */
+    public long hits() {
+        return hits;
+    }
+
+    /**
+     * @return number of nodes allocated because the free list was empty.
+     */
+    public long misses() {
+        return misses;
+    }
+
+    /**
+     * @return number of free nodes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return most free nodes kept.
+     */
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,74 @@
+import java.util.Arrays;
+
+/**
+ * Array-backed stack of tree nodes used by the iterative traversals in Tree.
+ * Every entry carries an int tag (depth, remaining sum, ...) so a traversal of a
+ * degenerate tree grows this array instead of the call stack.
+ */
+class NodeStack<E> {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private Tree.BinaryNode<E>[] nodes;  // Pushed nodes
+    private int[] tags;                  // Tag stored with each node
+    private int size;                    // Number of entries
+
+    /**
+     * Create an empty stack
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})  // Generic arrays cannot be created directly
+    NodeStack() {
+        nodes = (Tree.BinaryNode<E>[]) new Tree.BinaryNode[DEFAULT_CAPACITY];
+        tags = new int[DEFAULT_CAPACITY];
+        size = 0;
+    }
+
+    /**
+     * Push a node with its tag
+     * @param node the node to push.
+     * @param tag  value kept with the node.
+     */
+    void push(Tree.BinaryNode<E> node, int tag) {
+        if (size == nodes.length) {
+            nodes = Arrays.copyOf(nodes, size * 2);
+            tags = Arrays.copyOf(tags, size * 2);
+        }
+        nodes[size] = node;
+        tags[size] = tag;
+        size++;
+    }
+
+    /**
+     * @return the node on top of the stack.
+     */
+    Tree.BinaryNode<E> peek() {
+        if (size == 0) throw new UnderflowException("NodeStack peek");
+        return nodes[size - 1];
+    }
+
+    /**
+     * @return the tag of the node on top of the stack.
+     */
+    int peekTag() {
+        if (size == 0) throw new UnderflowException("NodeStack peekTag");
+        return tags[size - 1];
+    }
+
+    /**
+     * Remove the top entry
+     * @return the node that was on top of the stack.
+     */
+    Tree.BinaryNode<E> pop() {
+        if (size == 0) throw new UnderflowException("NodeStack pop");
+        Tree.BinaryNode<E> top = nodes[--size];
+        nodes[size] = null;  // Let the node be collected
+        return top;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+}
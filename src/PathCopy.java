@@ -0,0 +1,263 @@
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * AVL operations on BinaryNode that copy the search path instead of changing it.
+ * No node reachable from an argument is ever modified, so every old root stays a valid,
+ * unchanging tree that shares all untouched subtrees with the new one.
+ * Every node made here is an AugmentedNode with its height and size set, and heights are read
+ * and the AVL bound applied through the same helpers Tree uses.
+ */
+final class PathCopy {
+    private PathCopy() {
+    }
+
+    /**
+     * Insert x; duplicates are allowed and go right
+     * Makes O(log n) new nodes
+     * @param t the node that roots the tree.
+     * @param x the item to insert.
+     * @return root of the new tree.
+     */
+    static <E extends Comparable<? super E>> Tree.BinaryNode<E> insert(Tree.BinaryNode<E> t, E x) {
+        if (t == null)
+            return new Tree.AugmentedNode<>(x, null, null);
+
+        if (x.compareTo(t.element) < 0)
+            return balance(t.element, insert(t.left, x), t.right);
+        else
+            return balance(t.element, t.left, insert(t.right, x));
+    }
+
+    /**
+     * Remove one occurrence of x
+     * Makes O(log n) new nodes
+     * @param t the node that roots the tree.
+     * @param x the item to remove.
+     * @return root of the new tree, or t itself if x was not found.
+     */
+    static <E extends Comparable<? super E>> Tree.BinaryNode<E> remove(Tree.BinaryNode<E> t, E x) {
+        if (t == null)
+            return null;
+
+        int compareResult = x.compareTo(t.element);
+        if (compareResult < 0) {
+            Tree.BinaryNode<E> left = remove(t.left, x);
+            return (left == t.left) ? t : balance(t.element, left, t.right);
+        } else if (compareResult > 0) {
+            Tree.BinaryNode<E> right = remove(t.right, x);
+            return (right == t.right) ? t : balance(t.element, t.left, right);
+        }
+
+        // Match: splice out t
+        if (t.left == null) return t.right;
+        if (t.right == null) return t.left;
+        Tree.BinaryNode<E> successor = t.right;
+        while (successor.left != null) {
+            successor = successor.left;
+        }
+        return balance(successor.element, t.left, removeMin(t.right));
+    }
+
+    /**
+     * Helper method for remove
+     * @return root of the tree without its smallest node.
+     */
+    private static <E> Tree.BinaryNode<E> removeMin(Tree.BinaryNode<E> t) {
+        if (t.left == null)
+            return t.right;
+        return balance(t.element, removeMin(t.left), t.right);
+    }
+
+    /**
+     * Join two AVL trees around a middle element.
+     * Every element of left must come before mid and every element of right after it.
+     * Makes O(|height(left) - height(right)|) new nodes
+     * @return root of the joined, balanced tree.
+     */
+    static <E> Tree.BinaryNode<E> join(Tree.BinaryNode<E> left, E mid, Tree.BinaryNode<E> right) {
+        if (Tree.height(left) > Tree.height(right) + Tree.ALLOWED_IMBALANCE)
+            return balance(left.element, left.left, join(left.right, mid, right));
+        if (Tree.height(right) > Tree.height(left) + Tree.ALLOWED_IMBALANCE)
+            return balance(right.element, join(left, mid, right.left), right.right);
+        return new Tree.AugmentedNode<>(mid, left, right);
+    }
+
+    /**
+     * Keep only the elements in [a, b]
+     * Subtrees that lie wholly in range are shared, so this makes O(log n) new nodes
+     * @return root of the new tree.
+     */
+    static <E extends Comparable<? super E>> Tree.BinaryNode<E> keepRange(Tree.BinaryNode<E> t, E a, E b) {
+        return keepAtMost(keepAtLeast(t, a), b);
+    }
+
+    /**
+     * Helper method for keepRange
+     * @return root of the tree of elements of t that are not below a.
+     */
+    private static <E extends Comparable<? super E>> Tree.BinaryNode<E> keepAtLeast(Tree.BinaryNode<E> t, E a) {
+        if (t == null)
+            return null;
+        if (t.element.compareTo(a) < 0)
+            return keepAtLeast(t.right, a);
+        return join(keepAtLeast(t.left, a), t.element, t.right);
+    }
+
+    /**
+     * Helper method for keepRange
+     * @return root of the tree of elements of t that are not above b.
+     */
+    private static <E extends Comparable<? super E>> Tree.BinaryNode<E> keepAtMost(Tree.BinaryNode<E> t, E b) {
+        if (t == null)
+            return null;
+        if (t.element.compareTo(b) > 0)
+            return keepAtMost(t.left, b);
+        return join(t.left, t.element, keepAtMost(t.right, b));
+    }
+
+    /**
+     * Build a perfectly balanced tree of new nodes from sorted elements
+     * @param sorted the sorted elements.
+     * @param start  the start of the range.
+     * @param end    the end of the range.
+     * @return root of the tree.
+     */
+    static <E> Tree.BinaryNode<E> build(List<E> sorted, int start, int end) {
+        if (start > end)
+            return null;
+        int mid = (start + end) / 2;
+        return new Tree.AugmentedNode<>(sorted.get(mid), build(sorted, start, mid - 1), build(sorted, mid + 1, end));
+    }
+
+    /**
+     * Build the node (e, left, right), rotating if its subtrees differ in height by two.
+     * @return root of the balanced subtree.
+     */
+    private static <E> Tree.BinaryNode<E> balance(E e, Tree.BinaryNode<E> left, Tree.BinaryNode<E> right) {
+        if (Tree.height(left) - Tree.height(right) > Tree.ALLOWED_IMBALANCE) {
+            if (Tree.height(left.left) >= Tree.height(left.right)) {
+                // Rotate with left child
+                return new Tree.AugmentedNode<>(left.element, left.left,
+                        new Tree.AugmentedNode<>(e, left.right, right));
+            }
+            // Double rotate with left child
+            Tree.BinaryNode<E> k2 = left.right;
+            return new Tree.AugmentedNode<>(k2.element,
+                    new Tree.AugmentedNode<>(left.element, left.left, k2.left),
+                    new Tree.AugmentedNode<>(e, k2.right, right));
+        }
+        if (Tree.height(right) - Tree.height(left) > Tree.ALLOWED_IMBALANCE) {
+            if (Tree.height(right.right) >= Tree.height(right.left)) {
+                // Rotate with right child
+                return new Tree.AugmentedNode<>(right.element,
+                        new Tree.AugmentedNode<>(e, left, right.left), right.right);
+            }
+            // Double rotate with right child
+            Tree.BinaryNode<E> k2 = right.left;
+            return new Tree.AugmentedNode<>(k2.element,
+                    new Tree.AugmentedNode<>(e, left, k2.left),
+                    new Tree.AugmentedNode<>(right.element, k2.right, right.right));
+        }
+        return new Tree.AugmentedNode<>(e, left, right);
+    }
+
+    /**
+     * Determines if x is in the tree rooted at t
+     */
+    static <E extends Comparable<? super E>> boolean contains(Tree.BinaryNode<E> t, E x) {
+        while (t != null) {
+            int compareResult = x.compareTo(t.element);
+            if (compareResult < 0)
+                t = t.left;
+            else if (compareResult > 0)
+                t = t.right;
+            else
+                return true;    // Match
+        }
+        return false;
+    }
+
+    /**
+     * Find the least common ancestor of a and b in the BST rooted at t
+     * @return the ancestor, or null if the search leaves the tree first.
+     */
+    static <E extends Comparable<? super E>> Tree.BinaryNode<E> lca(Tree.BinaryNode<E> t, E a, E b) {
+        while (t != null) {
+            int compareA = a.compareTo(t.element);
+            int compareB = b.compareTo(t.element);
+            if (compareA < 0 && compareB < 0)
+                t = t.left;
+            else if (compareA > 0 && compareB > 0)
+                t = t.right;
+            else
+                return t;
+        }
+        return null;
+    }
+
+    /**
+     * Number of elements below x, or up to x if inclusive, in O(h)
+     */
+    static <E extends Comparable<? super E>> int countBelow(Tree.BinaryNode<E> t, E x, boolean inclusive) {
+        int count = 0;
+        while (t != null) {
+            int compareResult = t.element.compareTo(x);
+            if (compareResult < 0 || (inclusive && compareResult == 0)) {
+                count += Tree.size(t.left) + 1;
+                t = t.right;
+            } else {
+                t = t.left;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Visit every element in order, O(n)
+     */
+    static <E> void forEach(Tree.BinaryNode<E> t, Consumer<? super E> action) {
+        NodeStack<E> stack = new NodeStack<>();
+        Tree.BinaryNode<E> current = t;
+        while (current != null || !stack.isEmpty()) {
+            while (current != null) {
+                stack.push(current, 0);
+                current = current.left;
+            }
+            current = stack.pop();
+            action.accept(current.element);
+            current = current.right;
+        }
+    }
+
+    /**
+     * Visit the elements in [a, b] in order
+     * Only the two boundary paths and the k elements in range are visited: O(log n + k)
+     */
+    static <E extends Comparable<? super E>> void forEachInRange(Tree.BinaryNode<E> t, E a, E b,
+                                                                Consumer<? super E> action) {
+        NodeStack<E> stack = new NodeStack<>();
+        Tree.BinaryNode<E> current = t;
+        while (current != null || !stack.isEmpty()) {
+            while (current != null) {
+                if (current.element.compareTo(a) < 0) {
+                    // Nothing on the left is in range
+                    current = current.right;
+                } else {
+                    stack.push(current, 0);
+                    current = current.left;
+                }
+            }
+            if (stack.isEmpty()) {
+                break;
+            }
+            current = stack.pop();
+            if (current.element.compareTo(b) > 0) {
+                // Every later element is larger too
+                break;
+            }
+            action.accept(current.element);
+            current = current.right;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * Immutable version of a Tree.
+ * Operations that would change a Tree return a new PersistentTree instead.  The new version copies
+ * only the nodes it changes (see PathCopy) and shares the rest with the old one.  Every version is
+ * AVL balanced, so bstInsert, remove and keepRange cost O(log n) new nodes, and every old version
+ * stays valid.  Versions never change, so any number of threads can read them without locks.
+ */
+public class PersistentTree<E extends Comparable<? super E>> {
+    private final Tree.BinaryNode<E> root;  // Root of this version, never modified
+    private final String treeName;          // Name of tree
+
+    /**
+     * Create an empty tree
+     * @param label Name of tree
+     */
+    public PersistentTree(String label) {
+        this(label, null);
+    }
+
+    /**
+     * Wrap a root that nothing will modify again
+     * @param label Name of tree
+     * @param root  root of the version, with heights and sizes set
+     */
+    PersistentTree(String label, Tree.BinaryNode<E> root) {
+        this.treeName = label;
+        this.root = root;
+    }
+
+    /**
+     * Same tree under a new name, sharing every node
+     * @param name new name of tree
+     * @return the renamed version.
+     */
+    public PersistentTree<E> changeName(String name) {
+        return new PersistentTree<>(name, root);
+    }
+
+    /**
+     * Insert into a bst tree; duplicates are allowed
+     * The search path is copied and AVL balanced, O(log n) on a balanced tree
+     * @param x the item to insert.
+     * @return the new version.
+     */
+    public PersistentTree<E> bstInsert(E x) {
+        return new PersistentTree<>(treeName, PathCopy.insert(root, x));
+    }
+
+    /**
+     * Remove one occurrence of x
+     * @param x the item to remove.
+     * @return the new version, or this one if x was not found.
+     */
+    public PersistentTree<E> remove(E x) {
+        Tree.BinaryNode<E> updated = PathCopy.remove(root, x);
+        return (updated == root) ? this : new PersistentTree<>(treeName, updated);
+    }
+
+    /**
+     * In a BST, keep only nodes between range
+     * Subtrees wholly in range are shared, so this makes O(log n) new nodes on a balanced tree
+     * @param a lowest value
+     * @param b highest value
+     * @return the new version.
+     */
+    public PersistentTree<E> keepRange(E a, E b) {
+        return new PersistentTree<>(treeName, PathCopy.keepRange(root, a, b));
+    }
+
+    /**
+     * Remove all paths from tree that sum to less than given value
+     * Only nodes that lose a child are rebuilt, by joining what is left of their subtrees, along
+     * with their ancestors; the rest is shared, and the new version is AVL balanced
+     * @param sum minimum path sum allowed in final tree
+     * @return the new version.
+     */
+    public PersistentTree<E> pruneK(Integer sum) {
+        return pruneK(sum.longValue(), element -> (Integer) element);
+    }
+
+    /**
+     * Remove all paths from tree that sum to less than given value, for any element type
+     * Path sums are kept as primitives, as in Tree.pruneK
+     * @param sum    minimum path sum allowed in final tree
+     * @param weight value of an element.
+     * @return the new version.
+     */
+    public PersistentTree<E> pruneK(long sum, ToLongFunction<? super E> weight) {
+        if (root == null) return this;
+
+        // Iterative post-order; the sum the path still needs at each stacked node is kept by stack position
+        NodeStack<E> stack = new NodeStack<>();
+        long[] needed = new long[16];
+        List<Tree.BinaryNode<E>> results = new ArrayList<>();  // Pruned versions of finished subtrees
+        Tree.BinaryNode<E> current = root;
+        Tree.BinaryNode<E> last = null;
+        long remaining = sum;
+        while (current != null || !stack.isEmpty()) {
+            if (current != null) {
+                if (stack.size() == needed.length) needed = Arrays.copyOf(needed, needed.length * 2);
+                needed[stack.size()] = remaining;
+                stack.push(current, 0);
+                remaining -= weight.applyAsLong(current.element);
+                current = current.left;
+            } else {
+                Tree.BinaryNode<E> top = stack.peek();
+                long topRemaining = needed[stack.size() - 1];
+                if (top.right != null && top.right != last) {
+                    remaining = topRemaining - weight.applyAsLong(top.element);
+                    current = top.right;
+                } else {
+                    stack.pop();
+                    Tree.BinaryNode<E> right = (top.right == null) ? null : results.remove(results.size() - 1);
+                    Tree.BinaryNode<E> left = (top.left == null) ? null : results.remove(results.size() - 1);
+                    if (left == null && right == null && topRemaining > 0) {
+                        results.add(null);
+                    } else if (left == top.left && right == top.right) {
+                        results.add(top);  // Untouched, share it
+                    } else {
+                        results.add(PathCopy.join(left, top.element, right));  // Rebalance what pruning unevened
+                    }
+                    last = top;
+                }
+            }
+        }
+        return new PersistentTree<>(treeName, results.get(0));
+    }
+
+    /**
+     * Reverse left and right children of every node
+     * Every node changes, so this copies the whole tree, O(n)
+     * @return the new version.
+     */
+    public PersistentTree<E> flip() {
+        return new PersistentTree<>(treeName, copy(root, true));
+    }
+
+    /**
+     * Balance the tree
+     * The result is built from new nodes, O(n)
+     * @return the new version.
+     */
+    public PersistentTree<E> balanceTree() {
+        List<E> sorted = new ArrayList<>(Tree.size(root));
+        PathCopy.forEach(root, sorted::add);
+        return new PersistentTree<>(treeName, PathCopy.build(sorted, 0, sorted.size() - 1));
+    }
+
+    /**
+     * Copy this version into a new, mutable Tree with the same shape
+     * Every version is AVL balanced, so the tree is a balanced one and stays balanced.
+     * @param label Name of the new tree
+     * @return the tree, with order statistics enabled.
+     */
+    public Tree<E> toTree(String label) {
+        Tree<E> tree = new Tree<>(label);
+        tree.adoptRoot(copy(root, false), true);
+        return tree;
+    }
+
+    /**
+     * Copy of a subtree made of new nodes, without recursion
+     * @param t      the node that roots the subtree.
+     * @param mirror true to swap left and right everywhere.
+     * @return root of the copy.
+     */
+    static <E> Tree.BinaryNode<E> copy(Tree.BinaryNode<E> t, boolean mirror) {
+        if (t == null) return null;
+
+        NodeStack<E> stack = new NodeStack<>();
+        List<Tree.BinaryNode<E>> results = new ArrayList<>();
+        Tree.BinaryNode<E> current = t;
+        Tree.BinaryNode<E> last = null;
+        while (current != null || !stack.isEmpty()) {
+            if (current != null) {
+                stack.push(current, 0);
+                current = current.left;
+            } else {
+                Tree.BinaryNode<E> top = stack.peek();
+                if (top.right != null && top.right != last) {
+                    current = top.right;
+                } else {
+                    stack.pop();
+                    Tree.BinaryNode<E> right = (top.right == null) ? null : results.remove(results.size() - 1);
+                    Tree.BinaryNode<E> left = (top.left == null) ? null : results.remove(results.size() - 1);
+                    results.add(mirror ? new Tree.AugmentedNode<>(top.element, right, left)
+                                       : new Tree.AugmentedNode<>(top.element, left, right));
+                    last = top;
+                }
+            }
+        }
+        return results.get(0);
+    }
+
+    /**
+     * Determines if item is in tree
+     * @param item the item to search for.
+     * @return true if found.
+     */
+    public boolean contains(E item) {
+        return PathCopy.contains(root, item);
+    }
+
+    /**
+     * Find the least common ancestor of two elements
+     * @param a first element
+     * @param b second element
+     * @return element of the ancestor, or null if there is none.
+     */
+    public E lca(E a, E b) {
+        Tree.BinaryNode<E> ancestor = PathCopy.lca(root, a, b);
+        return (ancestor != null) ? ancestor.element : null;
+    }
+
+    /**
+     * Number of elements in the range [a, b], O(log n)
+     * @param a lowest value
+     * @param b highest value
+     * @return count of elements between a and b.
+     */
+    public int countInRange(E a, E b) {
+        if (a.compareTo(b) > 0) return 0;
+        return PathCopy.countBelow(root, b, true) - PathCopy.countBelow(root, a, false);
+    }
+
+    /**
+     * Number of elements in the tree, O(1)
+     */
+    public int size() {
+        return Tree.size(root);
+    }
+
+    /**
+     * Return a string displaying the tree contents as a single line
+     */
+    public String toString2() {
+        if (root == null)
+            return treeName + " Empty tree";
+
+        StringBuilder sb = new StringBuilder(treeName).append(" ");
+        PathCopy.forEach(root, element -> sb.append(element).append(" "));
+        return sb.toString();
+    }
+}
@@ -2,31 +2,74 @@
 // Throws UnderflowException as appropriate
 import org.junit.Assert;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class Tree<E extends Comparable<? super E>> implements Iterable<E> {
+    static final int ALLOWED_IMBALANCE = 1;  // Also used by PathCopy
+    private static final int REMOVE_REBUILD_FRACTION = 4;  // removeAll rebuilds for batches of n / 4 or more
+    private static final int PATH_BATCH = 8192;  // Characters printAllPaths collects before writing
+
+    // Binary file layout written by save: header, then one record per node in preorder
+    private static final int FILE_MAGIC = 0x54524545;    // "TREE"
+    private static final int FILE_VERSION = 2;           // Version 1 had no HAS_COUNT records
+    private static final int FILE_HEADER = 20;           // magic, version, element bytes, node count
+    private static final byte HAS_LEFT = 1;              // Record flag: a left subtree follows
+    private static final byte HAS_RIGHT = 2;             // Record flag: a right subtree follows
+    private static final byte HAS_COUNT = 4;             // Record flag: an int count precedes the element
+    private static final int WRITE_BUFFER = 1 << 16;
+    private static final long MAP_WINDOW = 1L << 30;     // Largest part of a file mapped at once
 
-class UnderflowException extends RuntimeException {
-    /**
-     * Construct this exception object.
-     *
-     * @param message the error message.
-     */
-    public UnderflowException(String message) {
-        super(message);
-    }
-}
-
-public class Tree<E extends Comparable<? super E>> {
     private BinaryNode<E> root;  // Root of tree
     private String treeName;     // Name of tree
+    private boolean balanced;    // true if the tree keeps itself AVL balanced
+    private boolean augmented;   // true if every node keeps its subtree height and size up to date
+    private boolean trackBST;    // true if every node also keeps its countBST metadata up to date
+    private NodePool<E> pool;    // Recycled nodes, null if nodes are not pooled
+    private boolean counted;     // true if equal elements share one node that counts them
+    private TreeMetrics metrics; // Operation statistics, null if not collected
 
     /**
      * Create an empty tree
      * @param label Name of tree
      */
     public Tree(String label) {
+        this(label, false);
+    }
+
+    /**
+     * Create an empty tree
+     * @param label    Name of tree
+     * @param balanced true if bstInsert, keepRange and pruneK should keep the tree AVL balanced
+     */
+    public Tree(String label, boolean balanced) {
         treeName = label;
         root = null;
+        this.balanced = balanced;
+        this.augmented = balanced;
     }
 
     /**
@@ -36,8 +79,25 @@ public class Tree<E extends Comparable<? super E>> {
      * @ordered true if want an ordered tree
      */
     public Tree(E[] arr, String label, boolean ordered) {
+        this(arr, label, ordered, false);
+    }
+
+    /**
+     * Create tree from list
+     * In a balanced tree bstInsert, contains, lca and keepRange are O(log n) worst case,
+     * even when the elements arrive in sorted order.  An ordered balanced tree is bulk loaded.
+     * @param arr      List of elements
+     * @param label    Name of tree
+     * @param ordered  true if want an ordered tree
+     * @param balanced true if the ordered tree should stay AVL balanced
+     */
+    public Tree(E[] arr, String label, boolean ordered, boolean balanced) {
         treeName = label;
-        if (ordered) {
+        this.balanced = balanced;
+        this.augmented = balanced;
+        if (ordered && balanced) {
+            bulkLoad(arr);
+        } else if (ordered) {
             root = null;
             for (int i = 0; i < arr.length; i++) {
                 bstInsert(arr[i]);
@@ -46,21 +106,177 @@ public class Tree<E extends Comparable<? super E>> {
     }
 
 
+    /**
+     * Replace the contents of the tree with a perfectly balanced BST of the elements
+     * The complexity of bulkLoad is O(n) when arr is already sorted, otherwise a copy
+     * of arr is sorted in parallel first
+     * @param arr elements to load; not modified
+     */
+    public void bulkLoad(E[] arr) {
+        E[] sorted = sorted(arr);
+        discard(root);
+
+        // Splitting a sorted array at the midpoint gives a BST
+        root = buildUnordered(sorted, 0, sorted.length - 1);
+        if (counted) mergeDuplicates();
+    }
+
+    /**
+     * Return arr if it is already sorted, otherwise a sorted copy of it
+     * @param arr elements; not modified
+     * @return the elements in sorted order.
+     */
+    private E[] sorted(E[] arr) {
+        for (int i = 1; i < arr.length; i++) {
+            if (arr[i - 1].compareTo(arr[i]) > 0) {
+                E[] sorted = Arrays.copyOf(arr, arr.length);
+                Arrays.parallelSort(sorted);
+                return sorted;
+            }
+        }
+        return arr;
+    }
+
     /**
      * Build a NON BST tree by inorder
+     * If arr is sorted the result is a balanced BST
      * @param arr nodes to be added
      * @return new tree
      */
     private BinaryNode<E> buildUnordered(E[] arr, int low, int high) {
         if (low > high) return null;
         int mid = (low + high) / 2;
-        BinaryNode<E> curr = new BinaryNode<>(arr[mid], null, null);
+        BinaryNode<E> curr = newNode(arr[mid]);
         curr.left = buildUnordered(arr, low, mid - 1);
         curr.right = buildUnordered(arr, mid + 1, high);
+        refresh(curr);
         return curr;
     }
 
 
+    /**
+     * Immutable copy of the tree
+     * Costs one O(n) copy; after that, changes to either tree do not affect the other, and
+     * versions derived from the snapshot share nodes with it.  A balanced tree is copied with the
+     * same shape; any other tree, and a multiset, is copied balanced with the same elements in order,
+     * so that updates to the snapshot copy O(log n) nodes.
+     * @return the snapshot.
+     */
+    public PersistentTree<E> snapshot() {
+        if (counted || !balanced) {
+            // Path copying is only O(log n) on a balanced shape, and a PersistentTree keeps one node
+            // per occurrence, so build the snapshot balanced from the elements
+            List<E> elements = new ArrayList<>(size());
+            inOrderTraversal(root, elements);
+            return new PersistentTree<>(treeName, PathCopy.build(elements, 0, elements.size() - 1));
+        }
+        return new PersistentTree<>(treeName, PersistentTree.copy(root, false));
+    }
+
+    /**
+     * Read-only copy of a BST laid out in one array for fast searches
+     * Costs one O(n) copy; later changes to the tree do not affect the copy.
+     * @return the frozen copy.
+     */
+    public FrozenTree<E> freeze() {
+        List<E> elements = new ArrayList<>();
+        inOrderTraversal(root, elements);
+        return new FrozenTree<>(treeName, elements);
+    }
+
+    /**
+     * Recycle nodes from now on: nodes dropped by pruneK, keepRange and the operations that rebuild
+     * the tree are kept in a pool and reused by inserts and rebuilds, instead of being collected.
+     * @param capacity most free nodes kept.
+     * @return the pool, with its hit and miss counts.
+     */
+    public NodePool<E> enableNodePool(int capacity) {
+        pool = new NodePool<>(capacity);
+        return pool;
+    }
+
+    /**
+     * @return the node pool, or null if nodes are not pooled.
+     */
+    public NodePool<E> nodePool() {
+        return pool;
+    }
+
+    /**
+     * Collect statistics from now on: count, compareTo calls and latency of contains, bstInsert
+     * and remove, and the rotations and rebuilds of the tree.  The metrics can be registered as
+     * an MXBean to watch them over JMX.
+     * @return the metrics.
+     */
+    public TreeMetrics enableMetrics() {
+        if (metrics == null) metrics = new TreeMetrics(this);
+        return metrics;
+    }
+
+    /**
+     * @return the metrics, or null if statistics are not collected.
+     */
+    public TreeMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * A new leaf, from the pool if nodes are pooled
+     * @param x the data in the node.
+     * @return the node.
+     */
+    private BinaryNode<E> newNode(E x) {
+        BinaryNode<E> node = (pool != null) ? pool.obtain(x) : null;
+        return (node != null) ? node : createNode(x);
+    }
+
+    /**
+     * A new leaf of the kind the tree uses: plain nodes keep only the element and the links,
+     * so a tree pays for heights, sizes and counts only once it keeps them
+     * @param x the data in the node.
+     * @return the node.
+     */
+    private BinaryNode<E> createNode(E x) {
+        if (trackBST) return new TrackedNode<>(x);
+        return (augmented || counted) ? new AugmentedNode<>(x) : new BinaryNode<>(x);
+    }
+
+    /**
+     * Replace every node with a new one of the kind createNode now makes, without recursion
+     * Free nodes in the pool are of the old kind, so the pool is emptied first.
+     * The complexity of replaceNodes is O(n)
+     */
+    private void replaceNodes() {
+        if (pool != null) pool.clear();
+        root = postOrder(root, 0, null, (node, level, left, right) -> {
+            BinaryNode<E> copy = createNode(node.element);
+            copy.left = left;
+            copy.right = right;
+            if (node.count() > 1) ((AugmentedNode<E>) copy).count = node.count();
+            refresh(copy);
+            return copy;
+        });
+    }
+
+    /**
+     * Give the nodes of a subtree the tree no longer refers to back to the pool, if nodes are pooled
+     * @param t the node that roots the subtree.
+     */
+    private void discard(BinaryNode<E> t) {
+        if (pool != null) pool.releaseAll(t);
+    }
+
+    /**
+     * Take over a tree of nodes that nothing else refers to
+     * @param newRoot  root of the nodes, with heights and sizes set.
+     * @param balanced true if the nodes are AVL balanced and the tree should keep them so.
+     */
+    void adoptRoot(BinaryNode<E> newRoot, boolean balanced) {
+        root = newRoot;
+        augmented = true;
+        this.balanced = balanced;
+    }
+
     /**
      * Change name of tree
      * @param name new name of tree
@@ -69,64 +285,275 @@ public class Tree<E extends Comparable<? super E>> {
         this.treeName = name;
     }
 
+
     /**
-     * Return a string displaying the tree contents as a single line
+     * Work done by postOrder at a node once both of its subtrees have been reduced.
+     * Every node also gets an int tag computed from its parent's tag; by default the tag is the depth.
      */
-    public String toString() {
-        if (root == null)
-            return treeName + " Empty tree";
-        else
-            return treeName + "\n" + toString(root, "", true);
+    private interface Reduction<E, R> {
+        /**
+         * @param node  the node being visited.
+         * @param tag   tag of the node.
+         * @param left  result for the left subtree.
+         * @param right result for the right subtree.
+         * @return result for the subtree rooted at node.
+         */
+        R combine(BinaryNode<E> node, int tag, R left, R right);
+
+        /**
+         * @param parent the node whose child is about to be visited.
+         * @param tag    tag of the parent.
+         * @return tag of the child.
+         */
+        default int childTag(BinaryNode<E> parent, int tag) {
+            return tag + 1;
+        }
+
+        /**
+         * @param node the node being visited.
+         * @param tag  tag of the node.
+         * @return false if the subtrees of node should be treated as empty.
+         */
+        default boolean descend(BinaryNode<E> node, int tag) {
+            return true;
+        }
     }
 
     /**
-     * Helper method to build the string tree
-     * @param node BinaryNode<E>
-     * @param indent String Current Level
-     * @param isRight   Indicate if the node is a right child
-     * @return String representation of tree
+     * Iterative post-order traversal shared by the bottom-up operations of the tree.
+     * The pending path lives in a NodeStack, so degenerate trees do not overflow the call stack.
+     * The complexity of postOrder is O(n)
+     * @param start    the node that roots the subtree.
+     * @param startTag tag of start.
+     * @param empty    result for an empty subtree.
+     * @param op       the work done at each node.
+     * @return the result for start.
      */
-    private String toString(BinaryNode<E> node, String indent, boolean isRight) {
-        // Base case: If the current node is null, return an empty string
-        if (node == null) {
-            return "";
+    private <R> R postOrder(BinaryNode<E> start, int startTag, R empty, Reduction<E, R> op) {
+        if (start == null) {
+            return empty;
         }
 
-        // StringBuilder to build the resulting string
-        StringBuilder result = new StringBuilder();
+        NodeStack<E> stack = new NodeStack<>();
+        List<R> results = new ArrayList<>();  // Results of finished subtrees
+        BinaryNode<E> current = start;
+        BinaryNode<E> last = null;            // Last node combined
+        int tag = startTag;
+
+        while (current != null || !stack.isEmpty()) {
+            if (current != null && !op.descend(current, tag)) {
+                // Cut off here, the node is combined as if it were a leaf
+                results.add(op.combine(current, tag, empty, empty));
+                last = current;
+                current = null;
+            } else if (current != null) {
+                // Go down the left spine
+                stack.push(current, tag);
+                tag = op.childTag(current, tag);
+                current = current.left;
+            } else {
+                BinaryNode<E> top = stack.peek();
+                int topTag = stack.peekTag();
+                if (top.right != null && top.right != last) {
+                    // Left subtree is done, now the right
+                    tag = op.childTag(top, topTag);
+                    current = top.right;
+                } else {
+                    // Both subtrees are done, combine them
+                    stack.pop();
+                    R right = (top.right == null) ? empty : results.remove(results.size() - 1);
+                    R left = (top.left == null) ? empty : results.remove(results.size() - 1);
+                    results.add(op.combine(top, topTag, left, right));
+                    last = top;
+                }
+            }
+        }
+        return results.get(0);
+    }
 
-        // Recursively build the string for the right subtree
-        String rightSubtree;
-        if (isRight) {
-            rightSubtree = toString(node.right, indent + "        ", true);
-        } else {
-            rightSubtree = toString(node.right, indent + " |      ", true);
-        }        result.append(rightSubtree);  // Print right
+    /**
+     * Number of levels the parallel reductions split into fork/join tasks before going sequential
+     * @param pool the pool that runs the tasks.
+     * @return enough levels for a few tasks per worker.
+     */
+    private static int parallelSplits(ForkJoinPool pool) {
+        return 32 - Integer.numberOfLeadingZeros(pool.getParallelism()) + 3;
+    }
+
+    /**
+     * Run a reduction on a pool: the top levels of the tree are split into
+     * tasks for the left and right subtrees, and each task below the cutoff runs postOrder.
+     * Results are identical to postOrder on the same tree.  The tree must not change while it runs.
+     */
+    private class ReduceTask<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+
+        private final BinaryNode<E> node;   // Root of the subtree of this task
+        private final int tag;              // Tag of node
+        private final int splits;           // Levels left before going sequential
+        private final R empty;              // Result for an empty subtree
+        private final Reduction<E, R> op;   // Work done at each node
+
+        ReduceTask(BinaryNode<E> node, int tag, int splits, R empty, Reduction<E, R> op) {
+            this.node = node;
+            this.tag = tag;
+            this.splits = splits;
+            this.empty = empty;
+            this.op = op;
+        }
 
-        result.append(indent);
+        @Override
+        protected R compute() {
+            if (node == null || splits == 0 || !op.descend(node, tag)) {
+                return postOrder(node, tag, empty, op);
+            }
 
-        // Append a representation of the link between the current node and its parent
-        if (isRight) {
-            result.append(" / ");
-        } else {
-            result.append(" \\ ");
+            int childTag = op.childTag(node, tag);
+            ReduceTask<R> leftTask = new ReduceTask<>(node.left, childTag, splits - 1, empty, op);
+            leftTask.fork();
+            R right = new ReduceTask<>(node.right, childTag, splits - 1, empty, op).compute();
+            return op.combine(node, tag, leftTask.join(), right);
         }
+    }
 
-        // Append the value of the current node and a newline character
-        result.append(node.element + "\n");  // Print current node
+    /**
+     * Run a reduction over the whole tree on a fork/join pool
+     * @param pool  the pool that runs the tasks.
+     * @param empty result for an empty subtree.
+     * @param op    the work done at each node.
+     * @return the result for the root.
+     */
+    private <R> R parallelPostOrder(ForkJoinPool pool, R empty, Reduction<E, R> op) {
+        return pool.invoke(new ReduceTask<>(root, 0, parallelSplits(pool), empty, op));
+    }
 
-        // Recursively build the string for the left subtree
-        String leftSubtree;
-        if (isRight) {
-            leftSubtree = toString(node.left, indent + " |      ", false);
-        } else {
-            leftSubtree = toString(node.left, indent + "        ", false);
-        }        result.append(leftSubtree);  // Print left
+    /**
+     * Iterative in-order traversal shared by the tree
+     * The complexity of inOrder is O(n)
+     * @param start the node that roots the subtree.
+     * @param visit called for each node, smallest first in a BST.
+     */
+    private void inOrder(BinaryNode<E> start, Consumer<BinaryNode<E>> visit) {
+        NodeStack<E> stack = new NodeStack<>();
+        BinaryNode<E> current = start;
+        while (current != null || !stack.isEmpty()) {
+            while (current != null) {
+                stack.push(current, 0);
+                current = current.left;
+            }
+            current = stack.pop();
+            visit.accept(current);
+            current = current.right;
+        }
+    }
 
-        // Return the final string representation of the subtree
+    /**
+     * Return a string displaying the tree contents as a single line
+     */
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        try {
+            render(result, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // A StringBuilder does not throw
+        }
         return result.toString();
     }
 
+    /**
+     * Write the tree, turned on its side, in the same layout as toString
+     * Lines are collected into batches of about PATH_BATCH characters before being written to out,
+     * and the indents are written from one reused buffer, so the cost is the size of the output.
+     * @param out      where the tree goes.
+     * @param maxDepth deepest level shown, root is zero; a cut subtree shows as "..."
+     * @param maxNodes most nodes shown; a final "..." line marks the rest
+     * @throws IOException if out fails.
+     */
+    public void render(Appendable out, int maxDepth, int maxNodes) throws IOException {
+        if (root == null) {
+            out.append(treeName).append(" Empty tree");
+            return;
+        }
+
+        StringBuilder batch = (out instanceof StringBuilder) ? (StringBuilder) out : new StringBuilder();
+        batch.append(treeName).append("\n");
+
+        char[] indent = new char[64];  // indent[0 .. 8 * depth) is the prefix of a node at depth
+        NodeStack<E> stack = new NodeStack<>();
+        int shown = 0;
+
+        // Reverse in-order: right subtree, node, left subtree. Tag is depth * 2 + (1 if right child)
+        BinaryNode<E> current = root;
+        int tag = 1;
+        while (current != null || !stack.isEmpty()) {
+            while (current != null) {
+                int depth = tag >> 1;
+                boolean isRight = (tag & 1) == 1;
+                if (depth > maxDepth) {
+                    renderLine(batch, indent, depth, isRight, "...");
+                    break;
+                }
+                stack.push(current, tag);
+                indent = setIndent(indent, depth, isRight ? "        " : " |      ");
+                current = current.right;
+                tag = (depth + 1) * 2 + 1;
+            }
+            if (stack.isEmpty()) {
+                break;
+            }
+
+            tag = stack.peekTag();
+            current = stack.pop();
+            int depth = tag >> 1;
+            boolean isRight = (tag & 1) == 1;
+            if (shown == maxNodes) {
+                batch.append("...\n");
+                break;
+            }
+            renderLine(batch, indent, depth, isRight, current.element);
+            shown++;
+            if (batch != out && batch.length() >= PATH_BATCH) {
+                out.append(batch);
+                batch.setLength(0);
+            }
+
+            indent = setIndent(indent, depth, isRight ? " |      " : "        ");
+            current = current.left;
+            tag = (depth + 1) * 2;
+        }
+        if (batch != out) {
+            out.append(batch);
+        }
+    }
+
+    /**
+     * Helper method for render: one line of the tree
+     * @param batch   where the line goes.
+     * @param indent  indent buffer.
+     * @param depth   depth of the node.
+     * @param isRight Indicate if the node is a right child
+     * @param value   what to show for the node.
+     */
+    private static void renderLine(StringBuilder batch, char[] indent, int depth, boolean isRight, Object value) {
+        batch.append(indent, 0, depth * 8);
+        // Append a representation of the link between the current node and its parent
+        batch.append(isRight ? " / " : " \\ ");
+        batch.append(value).append("\n");
+    }
+
+    /**
+     * Helper method for render: write the indent that the children of a node at depth add
+     * @return the indent buffer, grown if needed.
+     */
+    private static char[] setIndent(char[] indent, int depth, String step) {
+        int start = depth * 8;
+        if (start + 8 > indent.length) {
+            indent = Arrays.copyOf(indent, Math.max(indent.length * 2, start + 8));
+        }
+        step.getChars(0, 8, indent, start);
+        return indent;
+    }
+
 
     /**
      * Return a string displaying the tree contents as a single line
@@ -134,8 +561,10 @@ public class Tree<E extends Comparable<? super E>> {
     public String toString2() {
         if (root == null)
             return treeName + " Empty tree";
-        else
-            return treeName + " " + toString2(root);
+
+        StringBuilder sb = new StringBuilder(treeName).append(" ");
+        forEachElement(root, element -> sb.append(element.toString()).append(" "));
+        return sb.toString();
     }
 
     /**
@@ -145,11 +574,8 @@ public class Tree<E extends Comparable<? super E>> {
      * @param t the node that roots the subtree.
      */
     public String toString2(BinaryNode<E> t) {
-        if (t == null) return "";
         StringBuilder sb = new StringBuilder();
-        sb.append(toString2(t.left));
-        sb.append(t.element.toString() + " ");
-        sb.append(toString2(t.right));
+        forEachElement(t, element -> sb.append(element.toString()).append(" "));
         return sb.toString();
     }
 
@@ -159,23 +585,28 @@ public class Tree<E extends Comparable<? super E>> {
      * @return
      */
     public E deepestNode() {
-        BinaryNode<E> deepest = deepestNode(root, 0);
+        BinaryNode<E> deepest = postOrder(root, 0, null, this::deepestNode);
         return (deepest != null) ? deepest.element : null;    }
 
     /**
-     * Helper method for deepestNode
+     * deepestNode with the left and right subtrees searched in parallel
+     * @param pool the pool that runs the search.
+     * @return the same node as deepestNode()
+     */
+    public E deepestNode(ForkJoinPool pool) {
+        BinaryNode<E> deepest = parallelPostOrder(pool, null, this::deepestNode);
+        return (deepest != null) ? deepest.element : null;
+    }
+
+    /**
+     * Helper method for deepestNode, run by postOrder
      * @param current current node traversal.
      * @param currentLevel current level of current node.
+     * @param left deepest node in the left subtree.
+     * @param right deepest node in the right subtree.
      * @return deepest node
      */
-    private BinaryNode<E> deepestNode(BinaryNode<E> current,int currentLevel){
-        if (current == null) {
-            return null;
-        }
-        // Find the deepest node in left and right
-        BinaryNode<E> left = deepestNode(current.left, currentLevel + 1);
-        BinaryNode<E> right = deepestNode(current.right, currentLevel + 1);
-        
+    private BinaryNode<E> deepestNode(BinaryNode<E> current, int currentLevel, BinaryNode<E> left, BinaryNode<E> right) {
         // Compare the level of left and right
         if(left == null && right == null){
             // If both are null, current is the deepest
@@ -200,21 +631,28 @@ public class Tree<E extends Comparable<? super E>> {
     }
 
     /**
-     * Helper method to recursively reverse the left and right children of a subtree rooted at the given node.
+     * Helper method to reverse the left and right children of every node in the subtree rooted at the given node.
      *
-     * @param node The root of the current subtree being flipped.
+     * @param start The root of the subtree being flipped.
      */
-    private void flip(BinaryNode<E> node){
-        if (node == null) return;
-
-        BinaryNode<E> temp = node.left;
-        // Swap left and right childrens
-        node.left = node.right;
-        node.right = temp;
-
-        // Recursively flip left and right subtree
-        flip(node.left);
-        flip(node.right);
+    private void flip(BinaryNode<E> start){
+        if (start == null) return;
+
+        NodeStack<E> stack = new NodeStack<>();
+        stack.push(start, 0);
+        while (!stack.isEmpty()) {
+            BinaryNode<E> node = stack.pop();
+
+            BinaryNode<E> temp = node.left;
+            // Swap left and right childrens
+            node.left = node.right;
+            node.right = temp;
+
+            // Flip left and right subtree later
+            if (node.left != null) stack.push(node.left, 0);
+            if (node.right != null) stack.push(node.right, 0);
+        }
+        if (trackBST) updateAll(start);
     }
 
 
@@ -225,30 +663,39 @@ public class Tree<E extends Comparable<? super E>> {
      * @return count of number of nodes at specified level
      */
     public int nodesInLevel(int level) {
-        return nodesInLevel(root, 0, level);
+        return postOrder(root, 0, 0, nodesInLevelReduction(level));
+    }
+
+    /**
+     * nodesInLevel with the left and right subtrees counted in parallel
+     * @param level Level in tree, root is zero
+     * @param pool  the pool that runs the count.
+     * @return count of number of nodes at specified level
+     */
+    public int nodesInLevel(int level, ForkJoinPool pool) {
+        return parallelPostOrder(pool, 0, nodesInLevelReduction(level));
     }
 
     /**
      * Helper method for nodesInLevel
-     * @param current current node traversal.
-     * @param currentLevel current level of current node.
+     * Nothing below the target level is visited
      * @param targetLevel target level for counting nodes.
-     * @return Count - of number of nodes at specified level
+     * @return reduction giving the count of nodes at targetLevel in a subtree
      */
-    private int nodesInLevel(BinaryNode<E> current, int currentLevel, int targetLevel) {
-        if (current == null) {
-            return 0;
-        }
-
-        if (currentLevel == targetLevel) {
-            //  count this node at level
-            return 1;
-        }
-        // Count nodes in the left and right
-        int leftCount = nodesInLevel(current.left, currentLevel + 1, targetLevel);
-        int rightCount = nodesInLevel(current.right, currentLevel + 1, targetLevel);
+    private Reduction<E, Integer> nodesInLevelReduction(int targetLevel) {
+        return new Reduction<E, Integer>() {
+            @Override
+            public Integer combine(BinaryNode<E> current, int currentLevel, Integer leftCount, Integer rightCount) {
+                //  count this node at level, otherwise count nodes in the left and right
+                return (currentLevel == targetLevel) ? 1 : leftCount + rightCount;
+            }
 
-        return leftCount + rightCount;
+            @Override
+            public boolean descend(BinaryNode<E> current, int currentLevel) {
+                // With heights kept, skip subtrees that do not reach the target level
+                return currentLevel < targetLevel && (!augmented || currentLevel + height(current) >= targetLevel);
+            }
+        };
     }
 
 
@@ -257,134 +704,1442 @@ public class Tree<E extends Comparable<? super E>> {
      * The complexity of printAllPaths is O(2^n)
      */
     public void printAllPaths() {
-        printAllPaths(root, new ArrayList<>());
-
+        try {
+            printAllPaths(System.out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
+
     /**
-     * Helper method to printAllPaths
-     * @param current the current node in the traversal.
-     * @param pathList the list to store the current path.
+     * Write all paths from root to leaves, one per line
+     * Paths are collected into batches of about PATH_BATCH characters before being written to out.
+     * @param out where the paths go.
+     * @throws IOException if out fails.
      */
-    private void printAllPaths(BinaryNode<E> current, List<E> pathList) {
-        if (current == null) {
-            return;
-        }
-
-        // Add the current node to the path
-        pathList.add(current.element);
-
-        // Check if the current node is a leaf (both left and right children are null)
-        if (current.left == null && current.right == null) {
-            // Print the path when a leaf is reached
-            printPath(pathList);
-        } else {
-            // Recursively traverse the left and right subtrees
-            printAllPaths(current.left, new ArrayList<>(pathList));
-            printAllPaths(current.right, new ArrayList<>(pathList));
+    public void printAllPaths(Appendable out) throws IOException {
+        PathSpliterator<E> paths = new PathSpliterator<>(root);
+        StringBuilder batch = new StringBuilder();
+        while (paths.tryAdvance(path -> printPath(batch, path))) {
+            if (batch.length() >= PATH_BATCH) {
+                out.append(batch);
+                batch.setLength(0);
+            }
         }
+        out.append(batch);
     }
 
     /**
      * Helper method to printAllPaths
+     * @param batch where the line goes.
      * @param pathList the list representing a path from root to leaf.
      */
-    private void printPath(List<E> pathList) {
-        StringBuilder path = new StringBuilder();
-        for (E element : pathList) {
-            path.append(element).append(" ");
+    private void printPath(StringBuilder batch, List<E> pathList) {
+        for (int i = 0; i < pathList.size(); i++) {
+            if (i > 0) batch.append(" ");
+            batch.append(pathList.get(i));
         }
-        System.out.println(path.toString().trim());
+        batch.append(System.lineSeparator());
     }
 
+    /**
+     * Call visitor once for each path from root to leaf, leftmost path first
+     * The list passed to visitor is a view of one reused buffer: it is only valid during the call,
+     * so copy it to keep it.
+     * @param visitor gets the elements of each path, root first.
+     */
+    public void forEachPath(Consumer<List<E>> visitor) {
+        new PathSpliterator<>(root).forEachRemaining(visitor);
+    }
 
     /**
-     * Counts all non-null binary search trees embedded in tree
-     *  The complexity of countBST is O(n)
-     * @return Count of embedded binary search trees
+     * Lazy stream of the paths from root to leaf
+     * Each list is a view of a buffer reused by the spliterator that produced it, so copy it to keep it.
+     * A parallel stream splits the tree into subtrees, each walked with its own buffer.
+     * @param parallel true for a parallel stream.
+     * @return stream of paths, leftmost path first.
      */
-    public Integer countBST() {
-        return countBST(root).count;
+    public Stream<List<E>> paths(boolean parallel) {
+        return StreamSupport.stream(new PathSpliterator<>(root), parallel);
     }
 
     /**
-     * Helper method for countBST.
-     *
-     * @param current The current node
-     * @return CountBSTResult information of binary search trees in the subtree.
+     * Spliterator over the root to leaf paths of a tree
+     * Pending subtrees are kept on an explicit stack with the position of their root in the path, which is
+     * its depth unless an ancestor counts repeats.  Because the walk is depth first, path[0 .. p) always
+     * holds the ancestors of a pending subtree at position p, so one buffer serves every path.
      */
-    private CountBSTResult countBST(BinaryNode<E> current) {
-        if (current == null) {
-            return new CountBSTResult(0, null, null, true);
+    private static class PathSpliterator<E> implements Spliterator<List<E>> {
+        private BinaryNode<E>[] pending;  // Subtrees still to walk, the last one is next
+        private int[] depths;             // Position of each pending subtree in the path
+        private int top;                  // Number of pending subtrees
+        private final PathView<E> path;   // Reused buffer for the current path
+
+        /**
+         * Spliterator over every path of the tree rooted at start
+         */
+        PathSpliterator(BinaryNode<E> start) {
+            this(newPending(), new int[16], 0, new PathView<>());
+            if (start != null) {
+                push(start, 0);
+            }
         }
 
-        // Process the left and right subtrees
-        CountBSTResult leftResult = countBST(current.left);
-        CountBSTResult rightResult = countBST(current.right);
+        private PathSpliterator(BinaryNode<E>[] pending, int[] depths, int top, PathView<E> path) {
+            this.pending = pending;
+            this.depths = depths;
+            this.top = top;
+            this.path = path;
+        }
 
-        if (leftResult.isBST && rightResult.isBST &&
-                (leftResult.maxValue == null || leftResult.maxValue.compareTo(current.element) < 0) &&
-                (rightResult.minValue == null || rightResult.minValue.compareTo(current.element) > 0)) {
-            // If the current subtree is a BST, increment the count
-            int totalCount = 1 + leftResult.count + rightResult.count;
-            E minValue = (leftResult.minValue == null) ? current.element : leftResult.minValue;
-            E maxValue = (rightResult.maxValue == null) ? current.element : rightResult.maxValue;
-            return new CountBSTResult(totalCount, minValue, maxValue, true);
-        } else {
-            // If the current subtree is not a BST, return a result indicating that
-            return new CountBSTResult(leftResult.count + rightResult.count, null, null, false);
+        @SuppressWarnings({"unchecked", "rawtypes"})  // Generic arrays cannot be created directly
+        private static <E> BinaryNode<E>[] newPending() {
+            return (BinaryNode<E>[]) new BinaryNode[16];
+        }
+
+        private void push(BinaryNode<E> node, int depth) {
+            if (top == pending.length) {
+                pending = Arrays.copyOf(pending, top * 2);
+                depths = Arrays.copyOf(depths, top * 2);
+            }
+            pending[top] = node;
+            depths[top] = depth;
+            top++;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super List<E>> action) {
+            while (top > 0) {
+                BinaryNode<E> node = pending[--top];
+                int depth = depths[top];
+                pending[top] = null;
+                int next = path.put(depth, node);
+
+                if (node.left == null && node.right == null) {
+                    path.setSize(next);
+                    action.accept(path);
+                    return true;
+                }
+                // Right first so the left paths come first
+                if (node.right != null) push(node.right, next);
+                if (node.left != null) push(node.left, next);
+            }
+            return false;
+        }
+
+        /**
+         * Split off every pending subtree but the last one in path order.
+         * A lone pending subtree is opened first, down to its first node with two children.
+         */
+        @Override
+        public Spliterator<List<E>> trySplit() {
+            while (top == 1) {
+                BinaryNode<E> node = pending[0];
+                int depth = depths[0];
+                if (node.left == null && node.right == null) {
+                    return null;
+                }
+                int next = path.put(depth, node);
+                if (node.left != null && node.right != null) {
+                    pending[0] = node.right;
+                    depths[0] = next;
+                    push(node.left, next);
+                } else {
+                    pending[0] = (node.left != null) ? node.left : node.right;
+                    depths[0] = next;
+                }
+            }
+            if (top < 2) {
+                return null;
+            }
+
+            // The new spliterator takes the paths that come first, with its own copy of the buffer
+            int count = top - 1;
+            BinaryNode<E>[] prefixPending = Arrays.copyOfRange(pending, 1, Math.max(top, 16));
+            int[] prefixDepths = Arrays.copyOfRange(depths, 1, Math.max(top, 16));
+            PathSpliterator<E> prefix = new PathSpliterator<>(prefixPending, prefixDepths, count, path.copy());
+
+            Arrays.fill(pending, 1, top, null);
+            top = 1;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
         }
     }
 
     /**
-     * Helper class for countBST
-     * Result class to store information about the binary search trees in a subtree.
+     * List view of the path buffer used by PathSpliterator
      */
-    private class CountBSTResult {
-        int count;      // Number of BSTs in the subtree
-        E minValue;     // Minimum value in the subtree
-        E maxValue;     // Maximum value in the subtree
-        boolean isBST;  // Whether the subtree is a BST
+    private static class PathView<E> extends AbstractList<E> implements RandomAccess {
+        private Object[] elements = new Object[16];  // Elements by position in the path
+        private int size;                            // Length of the current path
+
+        /**
+         * Store each occurrence of the element of node from position on, growing the buffer if needed
+         * @return the position after the last occurrence.
+         */
+        int put(int position, BinaryNode<E> node) {
+            int end = position + node.count();
+            if (end > elements.length) {
+                elements = Arrays.copyOf(elements, Math.max(elements.length * 2, end));
+            }
+            Arrays.fill(elements, position, end, node.element);
+            return end;
+        }
 
-        CountBSTResult(int count, E minValue, E maxValue, boolean isBST) {
-            this.count = count;
-            this.minValue = minValue;
-            this.maxValue = maxValue;
-            this.isBST = isBST;
+        void setSize(int size) {
+            this.size = size;
+        }
+
+        /**
+         * @return a view over a copy of the buffer.
+         */
+        PathView<E> copy() {
+            PathView<E> copy = new PathView<>();
+            copy.elements = elements.clone();
+            copy.size = size;
+            return copy;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E get(int index) {
+            Objects.checkIndex(index, size);
+            return (E) elements[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
         }
     }
 
 
     /**
-     * Insert into a bst tree; duplicates are allowed
-     * The complexity of bstInsert depends on the tree.  If it is balanced the complexity is O(log n)
-     * @param x the item to insert.
+     * Lazy in-order iterator over a BST, smallest first
+     * Only the pending path is kept, O(h) memory.  The tree must not change while it is in use.
+     * @return the iterator.
      */
-    public void bstInsert(E x) {
+    @Override
+    public Iterator<E> iterator() {
+        return Spliterators.iterator(spliterator());
+    }
 
-        root = bstInsert(x, root);
+    /**
+     * In-order spliterator over a BST; splitting hands the smaller elements to the new spliterator
+     * It does not report SORTED, since unordered and flipped trees are not in sorted order.
+     * @return the spliterator.
+     */
+    @Override
+    public Spliterator<E> spliterator() {
+        return new InOrderSpliterator<>(root, null, null);
     }
 
     /**
-     * Internal method to insert into a subtree.
-     * In tree is balanced, this routine runs in O(log n)
-     * @param x the item to insert.
-     * @param t the node that roots the subtree.
-     * @return the new root of the subtree.
+     * Lazy stream of the elements of a BST, in order
+     * @param parallel true for a parallel stream.
+     * @return stream of the elements.
      */
-    private BinaryNode<E> bstInsert(E x, BinaryNode<E> t) {
-        if (t == null)
-            return new BinaryNode<E>(x, null, null);
-        int compareResult = x.compareTo(t.element);
+    public Stream<E> stream(boolean parallel) {
+        return StreamSupport.stream(spliterator(), parallel);
+    }
 
-        // Insert x into the left or right subtree
-        if (compareResult < 0) {
-            t.left = bstInsert(x, t.left);
-        } else {
+    /**
+     * Read-only range query over a BST: a view of the elements in [a, b] with their count and sum
+     * Unlike keepRange the tree is not changed, so any number of queries can run on it.
+     * @param a lowest value
+     * @param b highest value
+     * @return the view.
+     */
+    public RangeView rangeQuery(E a, E b) {
+        return new RangeView(a, b);
+    }
+
+    /**
+     * View of the elements of a BST in the range [a, b], in order
+     * @param a lowest value
+     * @param b highest value
+     * @return the view.
+     * @see #rangeQuery(Comparable, Comparable)
+     */
+    public RangeView subTree(E a, E b) {
+        return new RangeView(a, b);
+    }
+
+    /**
+     * View of the elements of a BST up to b, in order
+     * @param b highest value
+     * @return the view.
+     * @see #rangeQuery(Comparable, Comparable)
+     */
+    public RangeView headTree(E b) {
+        return new RangeView(null, b);
+    }
+
+    /**
+     * View of the elements of a BST from a on, in order
+     * @param a lowest value
+     * @return the view.
+     * @see #rangeQuery(Comparable, Comparable)
+     */
+    public RangeView tailTree(E a) {
+        return new RangeView(a, null);
+    }
+
+    /**
+     * Elements of a BST between two optional bounds, returned by rangeQuery, subTree, headTree and tailTree
+     * The view reads the tree each time it is used, and skips subtrees out of range,
+     * so a walk over it costs O(h + k) for k elements.  The tree must not change during a walk.
+     */
+    public class RangeView implements Iterable<E> {
+        private final E low;   // Lowest value, null if unbounded
+        private final E high;  // Highest value, null if unbounded
+
+        RangeView(E low, E high) {
+            this.low = low;
+            this.high = high;
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            return Spliterators.iterator(spliterator());
+        }
+
+        @Override
+        public Spliterator<E> spliterator() {
+            return new InOrderSpliterator<>(root, low, high);
+        }
+
+        /**
+         * Lazy stream of the elements in range, in order
+         * @param parallel true for a parallel stream.
+         * @return stream of the elements.
+         */
+        public Stream<E> stream(boolean parallel) {
+            return StreamSupport.stream(spliterator(), parallel);
+        }
+
+        /**
+         * Number of elements in range
+         * This is O(h) when order statistics are kept, otherwise O(h + k)
+         * @return the count.
+         */
+        public int count() {
+            if (augmented) {
+                if (low != null && high != null && low.compareTo(high) > 0) return 0;
+                int upTo = (high == null) ? size(root) : countBelow(high, true);
+                return upTo - ((low == null) ? 0 : countBelow(low, false));
+            }
+            int count = 0;
+            Spliterator<E> elements = spliterator();
+            while (elements.tryAdvance(element -> { })) {
+                count++;
+            }
+            return count;
+        }
+
+        /**
+         * Sum of the weights of the elements in range, for any element type
+         * Below the first node in range, the paths to the two bounds are walked, and each subtree
+         * that hangs wholly in range off them is summed by the loop sumAll uses.
+         * The complexity of sum is O(h + k)
+         * @param weight value of an element.
+         * @return the sum, 0 if the range is empty
+         */
+        public long sum(ToLongFunction<? super E> weight) {
+            BinaryNode<E> split = root;
+            while (split != null && !inRange(split.element)) {
+                split = (low != null && split.element.compareTo(low) < 0) ? split.right : split.left;
+            }
+            if (split == null) {
+                return 0;
+            }
+            long sum = weight.applyAsLong(split.element) * split.count();
+
+            // Everything left of split is below high, so only low can cut it
+            for (BinaryNode<E> t = split.left; t != null; ) {
+                if (low != null && t.element.compareTo(low) < 0) {
+                    t = t.right;
+                } else {
+                    sum += weight.applyAsLong(t.element) * t.count() + sumSubtree(t.right, weight);
+                    t = t.left;
+                }
+            }
+            // Everything right of split is at least low, so only high can cut it
+            for (BinaryNode<E> t = split.right; t != null; ) {
+                if (high != null && t.element.compareTo(high) > 0) {
+                    t = t.left;
+                } else {
+                    sum += weight.applyAsLong(t.element) * t.count() + sumSubtree(t.left, weight);
+                    t = t.right;
+                }
+            }
+            return sum;
+        }
+
+        private boolean inRange(E x) {
+            return (low == null || x.compareTo(low) >= 0) && (high == null || x.compareTo(high) <= 0);
+        }
+    }
+
+    /**
+     * In-order spliterator over the elements of a BST between two optional bounds
+     * Each pending entry is either a whole subtree or a single node; the last one is next.
+     * Taking a subtree replaces it with its right subtree, the node and its left subtree,
+     * leaving out the parts that are out of range, so at most two entries per level are pending.
+     */
+    private static class InOrderSpliterator<E extends Comparable<? super E>> implements Spliterator<E> {
+        private static final int SUBTREE = 0;  // Entry stands for every element of the subtree
+        private static final int SINGLE = 1;   // Entry stands for the node alone
+
+        private BinaryNode<E>[] pending;  // Entries still to visit, the last one is next
+        private int[] kinds;              // SUBTREE or SINGLE for each entry
+        private int top;                  // Number of entries
+        private int repeated;             // Occurrences of the next single node already visited
+        private final E low;              // Lowest value, null if unbounded
+        private final E high;             // Highest value, null if unbounded
+
+        InOrderSpliterator(BinaryNode<E> start, E low, E high) {
+            this(PathSpliterator.newPending(), new int[16], 0, low, high);
+            if (start != null && (low == null || high == null || low.compareTo(high) <= 0)) {
+                push(start, SUBTREE);
+            }
+        }
+
+        private InOrderSpliterator(BinaryNode<E>[] pending, int[] kinds, int top, E low, E high) {
+            this.pending = pending;
+            this.kinds = kinds;
+            this.top = top;
+            this.low = low;
+            this.high = high;
+        }
+
+        private void push(BinaryNode<E> node, int kind) {
+            if (top == pending.length) {
+                pending = Arrays.copyOf(pending, top * 2);
+                kinds = Arrays.copyOf(kinds, top * 2);
+            }
+            pending[top] = node;
+            kinds[top] = kind;
+            top++;
+        }
+
+        /**
+         * Replace the subtree on top with its parts that can hold elements in range
+         * Left holds nothing above node and right nothing below it, so a node out of range cuts one side.
+         */
+        private void open() {
+            BinaryNode<E> node = pending[--top];
+            pending[top] = null;
+            boolean aboveLow = low == null || node.element.compareTo(low) >= 0;
+            boolean belowHigh = high == null || node.element.compareTo(high) <= 0;
+            if (node.right != null && belowHigh) push(node.right, SUBTREE);
+            if (aboveLow && belowHigh) push(node, SINGLE);
+            if (node.left != null && aboveLow) push(node.left, SUBTREE);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super E> action) {
+            while (top > 0) {
+                if (kinds[top - 1] == SUBTREE) {
+                    open();
+                    continue;
+                }
+                BinaryNode<E> node = pending[top - 1];
+                if (++repeated == node.count()) {
+                    pending[--top] = null;
+                    repeated = 0;
+                }
+                action.accept(node.element);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Split off every pending entry but the first one, which holds the largest elements.
+         * A lone pending subtree is opened first.
+         */
+        @Override
+        public Spliterator<E> trySplit() {
+            while (top == 1 && kinds[0] == SUBTREE) {
+                open();
+            }
+            if (top < 2) {
+                return null;
+            }
+
+            int count = top - 1;
+            BinaryNode<E>[] prefixPending = Arrays.copyOfRange(pending, 1, Math.max(top, 16));
+            int[] prefixKinds = Arrays.copyOfRange(kinds, 1, Math.max(top, 16));
+            InOrderSpliterator<E> prefix = new InOrderSpliterator<>(prefixPending, prefixKinds, count, low, high);
+            prefix.repeated = repeated;  // The next entry goes to the prefix
+            repeated = 0;
+
+            Arrays.fill(pending, 1, top, null);
+            top = 1;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+    }
+
+
+    /**
+     * Counts all non-null binary search trees embedded in tree
+     *  The complexity of countBST is O(n)
+     * @return Count of embedded binary search trees
+     */
+    public Integer countBST() {
+        if (trackBST) {
+            return bstCount(root);
+        }
+        return postOrder(root, 0, new CountBSTResult(0, null, null, true), this::countBST).count;
+    }
+
+    /**
+     * countBST with the left and right subtrees counted in parallel
+     * @param pool the pool that runs the count.
+     * @return Count of embedded binary search trees
+     */
+    public Integer countBST(ForkJoinPool pool) {
+        if (trackBST) {
+            return bstCount(root);
+        }
+        return parallelPostOrder(pool, new CountBSTResult(0, null, null, true), this::countBST).count;
+    }
+
+    /**
+     * Helper method for countBST, run by postOrder.
+     *
+     * @param current The current node
+     * @param level level of the current node
+     * @param leftResult information of binary search trees in the left subtree.
+     * @param rightResult information of binary search trees in the right subtree.
+     * @return CountBSTResult information of binary search trees in the subtree.
+     */
+    private CountBSTResult countBST(BinaryNode<E> current, int level, CountBSTResult leftResult, CountBSTResult rightResult) {
+
+        if (leftResult.isBST && rightResult.isBST &&
+                (leftResult.maxValue == null || leftResult.maxValue.compareTo(current.element) < 0) &&
+                (rightResult.minValue == null || rightResult.minValue.compareTo(current.element) > 0)) {
+            // If the current subtree is a BST, increment the count
+            int totalCount = 1 + leftResult.count + rightResult.count;
+            E minValue = (leftResult.minValue == null) ? current.element : leftResult.minValue;
+            E maxValue = (rightResult.maxValue == null) ? current.element : rightResult.maxValue;
+            return new CountBSTResult(totalCount, minValue, maxValue, true);
+        } else {
+            // If the current subtree is not a BST, return a result indicating that
+            return new CountBSTResult(leftResult.count + rightResult.count, null, null, false);
+        }
+    }
+
+    /**
+     * Helper class for countBST
+     * Result class to store information about the binary search trees in a subtree.
+     */
+    private class CountBSTResult {
+        int count;      // Number of BSTs in the subtree
+        E minValue;     // Minimum value in the subtree
+        E maxValue;     // Maximum value in the subtree
+        boolean isBST;  // Whether the subtree is a BST
+
+        CountBSTResult(int count, E minValue, E maxValue, boolean isBST) {
+            this.count = count;
+            this.minValue = minValue;
+            this.maxValue = maxValue;
+            this.isBST = isBST;
+        }
+    }
+
+
+    /**
+     * Insert into a bst tree; duplicates are allowed
+     * The complexity of bstInsert depends on the tree.  If it is balanced the complexity is O(log n)
+     * @param x the item to insert.
+     */
+    public void bstInsert(E x) {
+        if (metrics == null) {
+            insert(x);
+            return;
+        }
+        long start = System.nanoTime();
+        insert(x);
+        metrics.record(metrics.insert, start);
+    }
+
+    /**
+     * Helper method for bstInsert
+     * @param x the item to insert.
+     */
+    private void insert(E x) {
+        if (balanced) {
+            // Height is O(log n), so recursion is safe here and in every other balanced branch
+            root = bstInsert(x, root);
+            return;
+        }
+
+        if (root == null) {
+            root = newNode(x);
+            return;
+        }
+
+        // Walk down to the empty spot for x
+        BinaryNode<E> node;  // The new node, once it is linked
+        BinaryNode<E> t = root;
+        int depth = 1;       // Depth of node once it is linked
+        while (true) {
+            if (augmented) ((AugmentedNode<E>) t).size++;
+            int compareResult = x.compareTo(t.element);
+            if (counted && compareResult == 0) {
+                // A repeat only bumps the count; sizes on the path are already up to date
+                ((AugmentedNode<E>) t).count++;
+                if (metrics != null) metrics.compared(depth);
+                return;
+            }
+            if (compareResult < 0) {
+                if (t.left == null) {
+                    t.left = node = newNode(x);
+                    break;
+                }
+                t = t.left;
+            } else {
+                if (t.right == null) {
+                    t.right = node = newNode(x);
+                    break;
+                }
+                t = t.right;
+            }
+            depth++;
+        }
+        if (metrics != null) metrics.compared(depth);
+
+        if (augmented) {
+            // Walk the same path again; every ancestor is at least as high as the distance down to node
+            int ancestorDepth = 0;
+            NodeStack<E> path = trackBST ? new NodeStack<>() : null;
+            if (metrics != null) metrics.compared(depth);
+            for (t = root; t != node; ancestorDepth++) {
+                AugmentedNode<E> ancestor = (AugmentedNode<E>) t;
+                ancestor.height = Math.max(ancestor.height, depth - ancestorDepth);
+                if (trackBST) path.push(t, 0);
+                t = (x.compareTo(t.element) < 0) ? t.left : t.right;
+            }
+            if (trackBST) updateSpine(path);
+        }
+    }
+
+    /**
+     * Internal method to insert into a subtree.
+     * In tree is balanced, this routine runs in O(log n)
+     * @param x the item to insert.
+     * @param t the node that roots the subtree.
+     * @return the new root of the subtree.
+     */
+    private BinaryNode<E> bstInsert(E x, BinaryNode<E> t) {
+        if (t == null)
+            return newNode(x);
+        int compareResult = x.compareTo(t.element);
+        if (metrics != null) metrics.compared(1);
+
+        // Insert x into the left or right subtree
+        if (compareResult < 0) {
+            t.left = bstInsert(x, t.left);
+        } else if (counted && compareResult == 0) {
+            ((AugmentedNode<E>) t).count++;
+        } else {
             t.right = bstInsert(x, t.right);
         }
+        return balanced ? balance(t) : t;
+    }
+
+    /**
+     * Insert every item of a batch; duplicates are allowed
+     * The batch is sorted and the tree is walked once, splitting the batch at each node,
+     * so the top levels are compared once per batch instead of once per item.
+     * A balanced tree stays balanced; if the batch is at least as large as the tree it is
+     * merged with the elements of the tree and rebuilt in O(n + k) instead.
+     * @param items the items to insert; not modified
+     */
+    public void bstInsertAll(E[] items) {
+        insertSorted(sorted(items));
+    }
+
+    /**
+     * Insert every item of a batch; duplicates are allowed
+     * @param items the items to insert.
+     * @see #bstInsertAll(Comparable[])
+     */
+    @SuppressWarnings("unchecked")
+    public void bstInsertAll(Collection<? extends E> items) {
+        E[] batch = (E[]) items.toArray(new Comparable<?>[0]);
+        Arrays.parallelSort(batch);
+        insertSorted(batch);
+    }
+
+    /**
+     * Helper method for bstInsertAll
+     * @param sorted the items to insert, in sorted order.
+     */
+    private void insertSorted(E[] sorted) {
+        if (counted) {
+            // Repeats have to land on the nodes that count them, so insert each item on its own
+            for (E x : sorted) {
+                bstInsert(x);
+            }
+            return;
+        }
+        if (sorted.length == 0) {
+            return;
+        }
+        if (root == null) {
+            root = buildUnordered(sorted, 0, sorted.length - 1);
+            return;
+        }
+        if (balanced) {
+            if (sorted.length >= size(root)) {
+                root = mergeSorted(sorted);
+            } else {
+                root = insertSorted(root, sorted, 0, sorted.length);
+            }
+            return;
+        }
+
+        // Tag of each frame is the start of its part of the batch
+        BatchStack<E> frames = new BatchStack<>();
+        NodeStack<E> visited = augmented ? new NodeStack<>() : null;
+        frames.push(root, 0, sorted.length);
+        while (!frames.isEmpty()) {
+            int end = frames.peekEnd();
+            int start = frames.peekTag();
+            BinaryNode<E> t = frames.pop();
+            if (augmented) visited.push(t, 0);
+
+            // Smaller items go left, equal and larger ones go right, as in bstInsert
+            int split = searchBatch(sorted, start, end, t.element, false);
+            if (start < split) {
+                if (t.left == null) {
+                    t.left = buildUnordered(sorted, start, split - 1);
+                } else {
+                    frames.push(t.left, start, split);
+                }
+            }
+            if (split < end) {
+                if (t.right == null) {
+                    t.right = buildUnordered(sorted, split, end - 1);
+                } else {
+                    frames.push(t.right, split, end);
+                }
+            }
+        }
+
+        // Every node is visited after its parent, so popping updates children first
+        if (augmented) updateSpine(visited);
+    }
+
+    /**
+     * Helper method for bstInsertAll on a balanced tree
+     * @param t      the node that roots the subtree.
+     * @param sorted the batch, in sorted order.
+     * @param start  first item that goes into this subtree.
+     * @param end    one past the last item that goes into this subtree.
+     * @return the new root of the subtree.
+     */
+    private BinaryNode<E> insertSorted(BinaryNode<E> t, E[] sorted, int start, int end) {
+        if (start == end)
+            return t;
+        if (t == null)
+            return buildUnordered(sorted, start, end - 1);
+
+        int split = searchBatch(sorted, start, end, t.element, false);
+        BinaryNode<E> left = insertSorted(t.left, sorted, start, split);
+        BinaryNode<E> right = insertSorted(t.right, sorted, split, end);
+        // The subtrees may have grown by different amounts, so glue them back together balanced
+        return join(left, t, right);
+    }
+
+    /**
+     * Helper method for bstInsertAll: merge the batch with the elements of the tree
+     * Equal elements already in the tree come first, as if the batch had been inserted one at a time.
+     * @param sorted the batch, in sorted order.
+     * @return the root of a perfectly balanced tree of both.
+     */
+    private BinaryNode<E> mergeSorted(E[] sorted) {
+        if (metrics != null) metrics.rebuilt();
+        List<E> elements = new ArrayList<>(size(root));
+        inOrderTraversal(root, elements);
+        discard(root);
+
+        E[] merged = Arrays.copyOf(sorted, elements.size() + sorted.length);
+        int i = 0;  // Next element of the tree
+        int j = 0;  // Next item of the batch
+        for (int k = 0; k < merged.length; k++) {
+            if (j == sorted.length || (i < elements.size() && elements.get(i).compareTo(sorted[j]) <= 0)) {
+                merged[k] = elements.get(i++);
+            } else {
+                merged[k] = sorted[j++];
+            }
+        }
+        return buildUnordered(merged, 0, merged.length - 1);
+    }
+
+    /**
+     * Binary search in part of a sorted batch
+     * @param sorted    the batch, in sorted order.
+     * @param start     first item searched.
+     * @param end       one past the last item searched.
+     * @param x         the bound.
+     * @param inclusive true to also skip items equal to x.
+     * @return first item not below x, or not up to x if inclusive; end if there is none.
+     */
+    private static <E extends Comparable<? super E>> int searchBatch(E[] sorted, int start, int end, E x, boolean inclusive) {
+        while (start < end) {
+            int mid = (start + end) >>> 1;
+            int compareResult = sorted[mid].compareTo(x);
+            if (compareResult < 0 || (inclusive && compareResult == 0)) {
+                start = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * NodeStack whose entries also carry the end of a part of a batch; the tag is its start
+     */
+    private static class BatchStack<E> extends NodeStack<E> {
+        private int[] ends = new int[16];  // End stored with each node
+
+        void push(BinaryNode<E> node, int start, int end) {
+            if (size() == ends.length) {
+                ends = Arrays.copyOf(ends, size() * 2);
+            }
+            ends[size()] = end;
+            push(node, start);
+        }
+
+        /**
+         * @return the end stored with the node on top of the stack.
+         */
+        int peekEnd() {
+            if (isEmpty()) throw new UnderflowException("BatchStack peekEnd");
+            return ends[size() - 1];
+        }
+    }
+
+    /**
+     * Remove one occurrence of x
+     * The node is replaced by its only child, or by its in-order successor, which is spliced out
+     * of the right subtree.  The complexity of remove depends on the tree.  If it is balanced the
+     * complexity is O(log n), and the tree stays balanced.
+     * @param x the item to remove.
+     * @return true if x was found.
+     */
+    public boolean remove(E x) {
+        if (metrics == null) {
+            return delete(x);
+        }
+        long start = System.nanoTime();
+        boolean found = delete(x);
+        metrics.record(metrics.remove, start);
+        return found;
+    }
+
+    /**
+     * Helper method for remove
+     * @param x the item to remove.
+     * @return true if x was found.
+     */
+    private boolean delete(E x) {
+        if (balanced) {
+            int before = size(root);
+            root = remove(x, root);
+            return size(root) != before;
+        }
+
+        // Walk down to x, keeping its ancestors if they need updating
+        NodeStack<E> spine = augmented ? new NodeStack<>() : null;
+        BinaryNode<E> parent = null;
+        BinaryNode<E> t = root;
+        int comparisons = 0;
+        while (t != null) {
+            int compareResult = x.compareTo(t.element);
+            comparisons++;
+            if (compareResult == 0) {
+                break;
+            }
+            if (augmented) spine.push(t, 0);
+            parent = t;
+            t = (compareResult < 0) ? t.left : t.right;
+        }
+        if (metrics != null) metrics.compared(comparisons);
+        if (t == null) {
+            return false;
+        }
+        if (counted && t.count() > 1) {
+            ((AugmentedNode<E>) t).count--;
+            if (augmented) {
+                spine.push(t, 0);
+                updateSpine(spine);
+            }
+            return true;
+        }
+
+        BinaryNode<E> replacement;
+        if (t.left == null) {
+            replacement = t.right;
+        } else if (t.right == null) {
+            replacement = t.left;
+        } else {
+            // Splice the successor out of the right subtree and put it where t was
+            replacement = t.right;
+            BinaryNode<E> successorParent = t;
+            while (replacement.left != null) {
+                successorParent = replacement;
+                replacement = replacement.left;
+            }
+            if (augmented) spine.push(replacement, 0);
+            if (successorParent != t) {
+                // Nodes between t and the successor lose a node from their left subtrees
+                if (augmented) {
+                    for (BinaryNode<E> node = t.right; node != replacement; node = node.left) {
+                        spine.push(node, 0);
+                    }
+                }
+                successorParent.left = replacement.right;
+                replacement.right = t.right;
+            }
+            replacement.left = t.left;
+        }
+
+        if (parent == null) {
+            root = replacement;
+        } else if (parent.left == t) {
+            parent.left = replacement;
+        } else {
+            parent.right = replacement;
+        }
+        t.left = null;
+        t.right = null;
+        discard(t);
+        if (augmented) updateSpine(spine);
+        return true;
+    }
+
+    /**
+     * Internal method to remove from a subtree.
+     * In tree is balanced, this routine runs in O(log n)
+     * @param x the item to remove.
+     * @param t the node that roots the subtree.
+     * @return the new root of the subtree.
+     */
+    private BinaryNode<E> remove(E x, BinaryNode<E> t) {
+        if (t == null)
+            return null;
+        int compareResult = x.compareTo(t.element);
+        if (metrics != null) metrics.compared(1);
+
+        if (compareResult < 0) {
+            t.left = remove(x, t.left);
+            return balance(t);
+        } else if (compareResult > 0) {
+            t.right = remove(x, t.right);
+            return balance(t);
+        }
+
+        // Match: lower the count, or splice out t
+        if (counted && t.count() > 1) {
+            ((AugmentedNode<E>) t).count--;
+            return balance(t);
+        }
+        BinaryNode<E> replacement;
+        if (t.left == null) {
+            replacement = t.right;
+        } else if (t.right == null) {
+            replacement = t.left;
+        } else {
+            replacement = t.right;
+            while (replacement.left != null) {
+                replacement = replacement.left;
+            }
+            replacement.right = removeMin(t.right);
+            replacement.left = t.left;
+            replacement = balance(replacement);
+        }
+        t.left = null;
+        t.right = null;
+        discard(t);
+        return replacement;
+    }
+
+    /**
+     * Helper method for remove: unlink the smallest node of a balanced subtree
+     * @param t the node that roots the subtree.
+     * @return the new root of the subtree.
+     */
+    private BinaryNode<E> removeMin(BinaryNode<E> t) {
+        if (t.left == null)
+            return t.right;
+        t.left = removeMin(t.left);
+        return balance(t);
+    }
+
+    /**
+     * Remove one occurrence of each item of a batch
+     * In a balanced tree, a batch of at least a quarter of the tree is removed in one pass over the
+     * elements, which are then rebuilt in O(n + k); smaller batches are removed one item at a time.
+     * @param items the items to remove; not modified
+     * @return number of items found and removed.
+     */
+    public int removeAll(E[] items) {
+        return removeSorted(sorted(items));
+    }
+
+    /**
+     * Remove one occurrence of each item of a batch
+     * @param items the items to remove.
+     * @return number of items found and removed.
+     * @see #removeAll(Comparable[])
+     */
+    @SuppressWarnings("unchecked")
+    public int removeAll(Collection<? extends E> items) {
+        E[] batch = (E[]) items.toArray(new Comparable<?>[0]);
+        Arrays.parallelSort(batch);
+        return removeSorted(batch);
+    }
+
+    /**
+     * Helper method for removeAll
+     * @param sorted the items to remove, in sorted order.
+     * @return number of items found and removed.
+     */
+    private int removeSorted(E[] sorted) {
+        if (balanced && !counted && sorted.length > 0 && sorted.length >= size(root) / REMOVE_REBUILD_FRACTION) {
+            List<E> elements = new ArrayList<>(size(root));
+            inOrderTraversal(root, elements);
+
+            // Both lists are sorted, so each item cancels the first equal element not yet cancelled
+            List<E> kept = new ArrayList<>(elements.size());
+            int j = 0;  // Next item of the batch
+            for (E element : elements) {
+                while (j < sorted.length && sorted[j].compareTo(element) < 0) {
+                    j++;
+                }
+                if (j < sorted.length && sorted[j].compareTo(element) == 0) {
+                    j++;
+                } else {
+                    kept.add(element);
+                }
+            }
+            discard(root);
+            root = buildBalancedBST(kept, 0, kept.size() - 1);
+            if (metrics != null) metrics.rebuilt();
+            return elements.size() - kept.size();
+        }
+
+        int removed = 0;
+        for (E x : sorted) {
+            if (remove(x)) removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Return the height of node t, or -1, if null.
+     * Only trees that keep heights and sizes have AugmentedNodes to read them from.
+     * PathCopy shares this and the two helpers below, so both balance by the same heights.
+     */
+    static int height(BinaryNode<?> t) {
+        return t == null ? -1 : ((AugmentedNode<?>) t).height;
+    }
+
+    /**
+     * Return the size of the subtree rooted at t, or 0, if null.
+     */
+    static int size(BinaryNode<?> t) {
+        return t == null ? 0 : ((AugmentedNode<?>) t).size;
+    }
+
+    /**
+     * Recompute the height and size of node t from its children.
+     * @param t the node whose children are already up to date.
+     */
+    static void update(AugmentedNode<?> t) {
+        t.height = Math.max(height(t.left), height(t.right)) + 1;
+        t.size = size(t.left) + size(t.right) + t.count;
+    }
+
+    /**
+     * Recompute the height and size of node t, and its countBST metadata if it is kept.
+     * Plain nodes keep neither, so this does nothing unless the tree keeps heights and sizes.
+     * @param t the node whose children are already up to date.
+     */
+    private void refresh(BinaryNode<E> t) {
+        if (!augmented) {
+            return;
+        }
+        update((AugmentedNode<E>) t);
+        if (trackBST) {
+            // Every node is a TrackedNode while the metadata is kept
+            TrackedNode<E> node = (TrackedNode<E>) t;
+            TrackedNode<E> left = (TrackedNode<E>) t.left;
+            TrackedNode<E> right = (TrackedNode<E>) t.right;
+            // Only a subtree that is a BST has a min and max
+            boolean isBST = (left == null || (left.max != null && left.max.compareTo(t.element) < 0)) &&
+                    (right == null || (right.min != null && right.min.compareTo(t.element) > 0));
+            node.bstCount = bstCount(left) + bstCount(right) + (isBST ? 1 : 0);
+            node.min = !isBST ? null : (left == null) ? t.element : left.min;
+            node.max = !isBST ? null : (right == null) ? t.element : right.max;
+        }
+    }
+
+    /**
+     * Return the number of BSTs embedded in the subtree rooted at t, or 0, if null.
+     */
+    private static int bstCount(BinaryNode<?> t) {
+        return t == null ? 0 : ((TrackedNode<?>) t).bstCount;
+    }
+
+    /**
+     * Recompute the height and size of every node in a subtree, in O(n) without recursion
+     * @param t the node that roots the subtree.
+     */
+    private void updateAll(BinaryNode<E> t) {
+        postOrder(t, 0, null, (node, level, left, right) -> {
+            refresh(node);
+            return null;
+        });
+    }
+
+    /**
+     * Keep subtree sizes and heights in every node from now on, so that select, rank,
+     * countInRange and height take O(h) or less.  Balanced trees always keep them.
+     * The fields live in AugmentedNode, so every node is replaced by one; plain trees do not pay for them.
+     * The complexity of enableOrderStatistics is O(n)
+     */
+    public void enableOrderStatistics() {
+        if (augmented) {
+            return;
+        }
+        augmented = true;
+        replaceNodes();
+    }
+
+    /**
+     * Keep the countBST metadata in every node from now on, so that countBST is O(1).
+     * Each change then updates only the nodes it touches and their ancestors; flip redoes every node.
+     * Order statistics are kept too.  The metadata lives in TrackedNode, so every node is replaced
+     * by one; plain trees do not pay for it.
+     * The complexity of enableBSTTracking is O(n)
+     */
+    public void enableBSTTracking() {
+        if (trackBST) {
+            return;
+        }
+        trackBST = true;
+        augmented = true;
+        replaceNodes();
+    }
+
+    /**
+     * Make the tree a multiset from now on: equal elements share one node that counts them.
+     * Inserting a repeat then only bumps a count, and removing one only lowers it.
+     * Elements already repeated in the tree are merged into one node each.
+     * toString2, printAllPaths, sumAll, pruneK and the iterators show every occurrence;
+     * countBST counts nodes, and equal elements no longer stop a subtree from being a BST.
+     */
+    public void enableMultiset() {
+        boolean plain = !augmented && !counted;
+        counted = true;
+        if (plain) replaceNodes();  // Counts live in AugmentedNode
+        mergeDuplicates();
+    }
+
+    /**
+     * Merge the nodes of each repeated element into one that counts them, in a multiset
+     * Each extra node is removed as in remove, so the shape changes only around repeats, but the
+     * removals are not recorded in the metrics.
+     */
+    private void mergeDuplicates() {
+        // Runs of equal elements in order, with how many nodes and occurrences each has
+        List<E> keys = new ArrayList<>();
+        List<int[]> runs = new ArrayList<>();
+        inOrder(root, node -> {
+            int last = keys.size() - 1;
+            if (last >= 0 && keys.get(last).compareTo(node.element) == 0) {
+                runs.get(last)[0]++;
+                runs.get(last)[1] += node.count();
+            } else {
+                keys.add(node.element);
+                runs.add(new int[] {1, node.count()});
+            }
+        });
+
+        // Remove every node of a run but one, then give that one the whole count
+        TreeMetrics recorded = metrics;
+        metrics = null;
+        counted = false;
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                for (int extra = runs.get(i)[0] - 1; extra > 0; extra--) {
+                    delete(keys.get(i));
+                }
+            }
+        } finally {
+            counted = true;
+            metrics = recorded;
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            if (runs.get(i)[0] > 1) {
+                ((AugmentedNode<E>) find(keys.get(i))).count = runs.get(i)[1];
+            }
+        }
+        if (augmented) updateAll(root);
+    }
+
+    /**
+     * Helper method for mergeDuplicates
+     * @param x the item to search for.
+     * @return a node holding x, or null if there is none.
+     */
+    private BinaryNode<E> find(E x) {
+        BinaryNode<E> t = root;
+        while (t != null) {
+            int compareResult = x.compareTo(t.element);
+            if (compareResult == 0) {
+                return t;
+            }
+            t = (compareResult < 0) ? t.left : t.right;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if every node keeps its subtree height and size, so height and size are O(1).
+     */
+    boolean orderStatistics() {
+        return augmented;
+    }
+
+    /**
+     * Height of the tree, -1 if empty
+     * This is O(1) when order statistics are kept, otherwise O(n)
+     * @return the number of links on the longest path from the root.
+     */
+    public int height() {
+        if (augmented) {
+            return height(root);
+        }
+        return postOrder(root, 0, -1, (node, level, left, right) -> Math.max(left, right) + 1);
+    }
+
+    /**
+     * Number of elements in the tree
+     * This is O(1) when order statistics are kept, otherwise O(n)
+     * @return the number of nodes.
+     */
+    public int size() {
+        if (augmented) {
+            return size(root);
+        }
+        return postOrder(root, 0, 0, (node, level, left, right) -> left + right + node.count());
+    }
+
+    /**
+     * Find the k-th smallest element of a BST, counting from 0
+     * The complexity of select is O(h)
+     * @param k position of the element in sorted order.
+     * @return the element.
+     * @throws IllegalStateException if order statistics are not kept.
+     * @throws IndexOutOfBoundsException if k is not in [0, size()).
+     */
+    public E select(int k) {
+        requireOrderStatistics();
+        Objects.checkIndex(k, size(root));
+
+        BinaryNode<E> t = root;
+        while (true) {
+            int leftSize = size(t.left);
+            if (k < leftSize) {
+                t = t.left;
+            } else if (k >= leftSize + t.count()) {
+                k -= leftSize + t.count();
+                t = t.right;
+            } else {
+                return t.element;
+            }
+        }
+    }
+
+    /**
+     * Number of elements of a BST that are smaller than x
+     * The complexity of rank is O(h)
+     * @param x the item to rank; it does not have to be in the tree.
+     * @return the rank of x.
+     * @throws IllegalStateException if order statistics are not kept.
+     */
+    public int rank(E x) {
+        requireOrderStatistics();
+        return countBelow(x, false);
+    }
+
+    /**
+     * Number of elements of a BST in the range [a, b]
+     * The complexity of countInRange is O(h)
+     * @param a lowest value
+     * @param b highest value
+     * @return count of elements between a and b.
+     * @throws IllegalStateException if order statistics are not kept.
+     */
+    public int countInRange(E a, E b) {
+        requireOrderStatistics();
+        if (a.compareTo(b) > 0) return 0;
+        return countBelow(b, true) - countBelow(a, false);
+    }
+
+    /**
+     * Helper method for rank and countInRange
+     * @param x         the bound.
+     * @param inclusive true to also count elements equal to x.
+     * @return number of elements below x, or up to x if inclusive.
+     */
+    private int countBelow(E x, boolean inclusive) {
+        int count = 0;
+        BinaryNode<E> t = root;
+        while (t != null) {
+            int compareResult = t.element.compareTo(x);
+            if (compareResult < 0 || (inclusive && compareResult == 0)) {
+                // t and its left subtree are all counted
+                count += size(t.left) + t.count();
+                t = t.right;
+            } else {
+                t = t.left;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Helper method for the order statistics queries
+     */
+    private void requireOrderStatistics() {
+        if (!augmented) {
+            throw new IllegalStateException("Order statistics are not enabled for " + treeName);
+        }
+    }
+
+    /**
+     * Restore the AVL property of t, assuming its subtrees differ in height by at most two.
+     * @param t the node that roots the subtree.
+     * @return the new root of the subtree.
+     */
+    private BinaryNode<E> balance(BinaryNode<E> t) {
+        if (t == null)
+            return t;
+
+        if (height(t.left) - height(t.right) > ALLOWED_IMBALANCE) {
+            if (height(t.left.left) >= height(t.left.right))
+                t = rotateWithLeftChild(t);
+            else
+                t = doubleWithLeftChild(t);
+        } else if (height(t.right) - height(t.left) > ALLOWED_IMBALANCE) {
+            if (height(t.right.right) >= height(t.right.left))
+                t = rotateWithRightChild(t);
+            else
+                t = doubleWithRightChild(t);
+        }
+
+        refresh(t);
         return t;
     }
 
+    /**
+     * Rotate binary tree node with left child.
+     * Update heights, then return new root.
+     */
+    private BinaryNode<E> rotateWithLeftChild(BinaryNode<E> k2) {
+        BinaryNode<E> k1 = k2.left;
+        k2.left = k1.right;
+        k1.right = k2;
+        refresh(k2);
+        refresh(k1);
+        if (metrics != null) metrics.rotated();
+        return k1;
+    }
+
+    /**
+     * Rotate binary tree node with right child.
+     * Update heights, then return new root.
+     */
+    private BinaryNode<E> rotateWithRightChild(BinaryNode<E> k1) {
+        BinaryNode<E> k2 = k1.right;
+        k1.right = k2.left;
+        k2.left = k1;
+        refresh(k1);
+        refresh(k2);
+        if (metrics != null) metrics.rotated();
+        return k2;
+    }
+
+    /**
+     * Double rotate binary tree node: first left child with its right child;
+     * then node k3 with new left child.
+     */
+    private BinaryNode<E> doubleWithLeftChild(BinaryNode<E> k3) {
+        k3.left = rotateWithRightChild(k3.left);
+        return rotateWithLeftChild(k3);
+    }
+
+    /**
+     * Double rotate binary tree node: first right child with its left child;
+     * then node k1 with new right child.
+     */
+    private BinaryNode<E> doubleWithRightChild(BinaryNode<E> k1) {
+        k1.right = rotateWithLeftChild(k1.right);
+        return rotateWithRightChild(k1);
+    }
+
+    /**
+     * Join two AVL trees around a middle node.
+     * Every element of left must come before mid and every element of right after it.
+     * This routine runs in O(|height(left) - height(right)|)
+     * @param left  tree of smaller elements.
+     * @param mid   node placed between the two trees.
+     * @param right tree of larger elements.
+     * @return the root of the joined, balanced tree.
+     */
+    private BinaryNode<E> join(BinaryNode<E> left, BinaryNode<E> mid, BinaryNode<E> right) {
+        if (height(left) > height(right) + ALLOWED_IMBALANCE) {
+            left.right = join(left.right, mid, right);
+            return balance(left);
+        }
+        if (height(right) > height(left) + ALLOWED_IMBALANCE) {
+            right.left = join(left, mid, right.left);
+            return balance(right);
+        }
+        mid.left = left;
+        mid.right = right;
+        refresh(mid);
+        return mid;
+    }
+
 
     /**
      * Determines if item is in tree
@@ -392,31 +2147,78 @@ public class Tree<E extends Comparable<? super E>> {
      * @return true if found.
      */
     public boolean contains(E item) {
-        return contains(item, root);
+        if (metrics == null) {
+            return contains(item, root);
+        }
+        long start = System.nanoTime();
+        boolean found = contains(item, root);
+        metrics.record(metrics.contains, start);
+        return found;
     }
 
     /**
      * Internal method to find an item in a subtree.
-     * This routine runs in O(log n) as there is only one recursive call that is executed and the work
-     * associated with a single call is independent of the size of the tree: a=1, b=2, k=0
+     * This routine runs in O(log n) on a balanced tree as it takes a single path down the tree and the work
+     * at each node is independent of the size of the tree
      *
      * @param x is item to search for.
      * @param t the node that roots the subtree.
      * @return node containing the matched item.
      */
-    private boolean contains(E x, BinaryNode<E> t) {
-        if (t == null)
-            return false;
+    private boolean contains(E x, BinaryNode<E> t) {
+        int comparisons = 0;
+        while (t != null) {
+            int compareResult = x.compareTo(t.element);
+            comparisons++;
+            // search in the left or right
+            if (compareResult < 0)
+                t = t.left;
+            else if (compareResult > 0)
+                t = t.right;
+            else {
+                break;    // Match
+            }
+        }
+        if (metrics != null) metrics.compared(comparisons);
+        return t != null;
+    }
+
+
+    /**
+     * Determines which items of a batch are in tree
+     * The batch is sorted and the tree is walked once, splitting the batch at each node,
+     * so each node on the shared part of the search paths is compared once per batch.
+     * @param items the items to search for; not modified
+     * @return true at the position of each item that is found.
+     */
+    public boolean[] containsAll(E[] items) {
+        E[] sorted = sorted(items);
+        boolean[] found = new boolean[sorted.length];
+
+        BatchStack<E> frames = new BatchStack<>();
+        if (root != null && sorted.length > 0) frames.push(root, 0, sorted.length);
+        while (!frames.isEmpty()) {
+            int end = frames.peekEnd();
+            int start = frames.peekTag();
+            BinaryNode<E> t = frames.pop();
+
+            // Items below t go left, items equal to t match, items above t go right
+            int low = searchBatch(sorted, start, end, t.element, false);
+            int high = searchBatch(sorted, low, end, t.element, true);
+            Arrays.fill(found, low, high, true);
+            if (start < low && t.left != null) frames.push(t.left, start, low);
+            if (high < end && t.right != null) frames.push(t.right, high, end);
+        }
 
-        int compareResult = x.compareTo(t.element);
-        // search in the left or right
-        if (compareResult < 0)
-            return contains(x, t.left);
-        else if (compareResult > 0)
-            return contains(x, t.right);
-        else {
-            return true;    // Match
+        if (sorted == items) {
+            return found;
         }
+        // Equal items share one answer, so any copy of an item in the sorted batch will do
+        boolean[] result = new boolean[items.length];
+        for (int i = 0; i < items.length; i++) {
+            result[i] = found[Arrays.binarySearch(sorted, items[i])];
+        }
+        return result;
     }
 
 
@@ -425,31 +2227,101 @@ public class Tree<E extends Comparable<? super E>> {
      * @param sum: minimum path sum allowed in final tree
      */
     public void pruneK(Integer sum) {
-        root = pruneK(root, sum);
+        pruneK(sum.longValue(), element -> (Integer) element);
     }
 
-    private BinaryNode<E> pruneK(BinaryNode<E> current, Integer sum) {
-        if (current == null) {
-            return null;
-        }
+    /**
+     * Remove all paths from tree that sum to less than given value, for any element type
+     * A leaf is removed if the elements above it sum to less than sum; a node whose children are all
+     * removed becomes a leaf and is checked in turn.  Path sums are kept as primitives by depth.
+     * The complexity of pruneK is O(n)
+     * @param sum    minimum path sum allowed in final tree
+     * @param weight value of an element.
+     */
+    public void pruneK(long sum, ToLongFunction<? super E> weight) {
+        root = postOrder(root, 0, null, new Reduction<E, BinaryNode<E>>() {
+            private long[] remaining = {sum};  // Sum still needed by the path, by depth
+
+            @Override
+            public BinaryNode<E> combine(BinaryNode<E> current, int depth, BinaryNode<E> left, BinaryNode<E> right) {
+                return pruneK(current, remaining[depth] > 0, left, right);
+            }
 
-        // Calculate the sum for the current node
-        Integer currentSum = (Integer) current.element;
+            @Override
+            public int childTag(BinaryNode<E> parent, int depth) {
+                remaining = grow(remaining, depth + 1);
+                remaining[depth + 1] = remaining[depth] - weight.applyAsLong(parent.element) * parent.count();
+                return depth + 1;
+            }
+        });
+    }
+
+    /**
+     * pruneK with path sums of type double
+     * @param sum    minimum path sum allowed in final tree
+     * @param weight value of an element.
+     * @see #pruneK(long, ToLongFunction)
+     */
+    public void pruneKDouble(double sum, ToDoubleFunction<? super E> weight) {
+        root = postOrder(root, 0, null, new Reduction<E, BinaryNode<E>>() {
+            private double[] remaining = {sum};  // Sum still needed by the path, by depth
+
+            @Override
+            public BinaryNode<E> combine(BinaryNode<E> current, int depth, BinaryNode<E> left, BinaryNode<E> right) {
+                return pruneK(current, remaining[depth] > 0, left, right);
+            }
+
+            @Override
+            public int childTag(BinaryNode<E> parent, int depth) {
+                remaining = grow(remaining, depth + 1);
+                remaining[depth + 1] = remaining[depth] - weight.applyAsDouble(parent.element) * parent.count();
+                return depth + 1;
+            }
+        });
+    }
 
-        // Recursively prune the left and right subtrees
-        current.left = pruneK(current.left, sum - currentSum);
-        current.right = pruneK(current.right, sum - currentSum);
+    /**
+     * Helper method for pruneK, run by postOrder
+     * @param current current node traversal.
+     * @param belowSum true if the path above current sums to less than the sum.
+     * @param left    left subtree, already pruned.
+     * @param right   right subtree, already pruned.
+     * @return the pruned subtree.
+     */
+    private BinaryNode<E> pruneK(BinaryNode<E> current, boolean belowSum, BinaryNode<E> left, BinaryNode<E> right) {
+        current.left = left;
+        current.right = right;
 
-        // If the current node is a leaf and the sum is less than or equal to 0, prune it
-        if (current.left == null && current.right == null && sum > 0) {
+        // If the current node is a leaf and its path is below the sum, prune it
+        if (current.left == null && current.right == null && belowSum) {
+            discard(current);
             return null;
         }
 
+        if (balanced) {
+            return join(current.left, current, current.right);
+        }
+        if (augmented) refresh(current);
         return current;
     }
 
+    /**
+     * Return arr if it has a slot at index, otherwise a copy at least twice as long
+     */
+    private static long[] grow(long[] arr, int index) {
+        return (index < arr.length) ? arr : Arrays.copyOf(arr, Math.max(arr.length * 2, index + 1));
+    }
+
+    /**
+     * Return arr if it has a slot at index, otherwise a copy at least twice as long
+     */
+    private static double[] grow(double[] arr, int index) {
+        return (index < arr.length) ? arr : Arrays.copyOf(arr, Math.max(arr.length * 2, index + 1));
+    }
+
     /**
      * Build tree given inOrder and preOrder traversals.  Each value is unique
+     * Single pass with a stack of nodes whose right child is still open, so this runs in O(n)
      * @param inOrder  List of tree nodes in inorder
      * @param preOrder List of tree nodes in preorder
      */
@@ -457,61 +2329,508 @@ public class Tree<E extends Comparable<? super E>> {
         if (inOrder.length != preOrder.length) {
             throw new IllegalArgumentException("Input arrays must have the same length");
         }
+        discard(root);
+        root = null;
+        if (preOrder.length == 0) return;
+
+        NodeStack<E> stack = new NodeStack<>();
+        root = newNode(preOrder[0]);
+        stack.push(root, 0);
+        int in = 0;  // Next node in inOrder that has not been closed
+        for (int pre = 1; pre < preOrder.length; pre++) {
+            BinaryNode<E> node = newNode(preOrder[pre]);
+            BinaryNode<E> parent = null;
+            // Pop every node whose left subtree is complete; the last one popped gets node as right child
+            while (!stack.isEmpty() && stack.peek().element.equals(inOrder[in])) {
+                parent = stack.pop();
+                in++;
+            }
+            if (parent != null) {
+                parent.right = node;
+            } else {
+                stack.peek().left = node;
+            }
+            stack.push(node, 0);
+        }
+        if (augmented) updateAll(root);
+    }
+
+    /**
+     * Build tree given inOrder and postOrder traversals.  Each value is unique
+     * Mirror of buildTreeTraversals, reading both lists from the end, O(n)
+     * @param inOrder   List of tree nodes in inorder
+     * @param postOrder List of tree nodes in postorder
+     */
+    public void buildTreePostOrder(E[] inOrder, E[] postOrder) {
+        if (inOrder.length != postOrder.length) {
+            throw new IllegalArgumentException("Input arrays must have the same length");
+        }
+        discard(root);
+        root = null;
+        if (postOrder.length == 0) return;
+
+        NodeStack<E> stack = new NodeStack<>();
+        root = newNode(postOrder[postOrder.length - 1]);
+        stack.push(root, 0);
+        int in = inOrder.length - 1;  // Next node in inOrder, from the end, that has not been closed
+        for (int post = postOrder.length - 2; post >= 0; post--) {
+            BinaryNode<E> node = newNode(postOrder[post]);
+            BinaryNode<E> parent = null;
+            // Pop every node whose right subtree is complete; the last one popped gets node as left child
+            while (!stack.isEmpty() && stack.peek().element.equals(inOrder[in])) {
+                parent = stack.pop();
+                in--;
+            }
+            if (parent != null) {
+                parent.left = node;
+            } else {
+                stack.peek().right = node;
+            }
+            stack.push(node, 0);
+        }
+        if (augmented) updateAll(root);
+    }
 
-        root = buildTreeTraversals(inOrder, preOrder, 0, inOrder.length - 1, 0);
+    /**
+     * Build a BST given only its preOrder traversal
+     * The inorder is the sorted order, so it is not needed.  Equal elements go right, as in bstInsert.
+     * Single pass with a stack of nodes whose right child is still open, O(n)
+     * @param preOrder List of tree nodes in preorder
+     */
+    public void buildBSTPreOrder(E[] preOrder) {
+        discard(root);
+        root = null;
+        if (preOrder.length == 0) return;
+
+        NodeStack<E> stack = new NodeStack<>();
+        root = newNode(preOrder[0]);
+        stack.push(root, 0);
+        for (int pre = 1; pre < preOrder.length; pre++) {
+            BinaryNode<E> node = newNode(preOrder[pre]);
+            BinaryNode<E> parent = null;
+            // Pop every node that node belongs to the right of; the last one popped is its parent
+            while (!stack.isEmpty() && node.element.compareTo(stack.peek().element) >= 0) {
+                parent = stack.pop();
+            }
+            if (parent != null) {
+                parent.right = node;
+            } else {
+                stack.peek().left = node;
+            }
+            stack.push(node, 0);
+        }
+        if (augmented) updateAll(root);
+        if (counted) mergeDuplicates();
     }
 
     /**
-     * Helper method to build a Binary Tree from inOrder and preOrder traversals.
-     *
-     * @param inOrder  List of tree nodes in inorder traversal.
-     * @param preOrder List of tree nodes in preorder traversal.
-     * @param inStart  Start index of the current subtree in inOrder traversal.
-     * @param inEnd    End index of the current subtree in inOrder traversal.
-     * @param preIndex Current index in preOrder traversal.
-     * @return Root node of the constructed subtree.
-     */
-    private BinaryNode<E> buildTreeTraversals(E[] inOrder, E[] preOrder, int inStart, int inEnd, int preIndex) {
-        if (inStart > inEnd || preIndex >= preOrder.length) {
-            return null;
+     * Elements of the tree in preorder, one per node, as buildBSTPreOrder takes them
+     * Iterative, so a chain of any height is fine, O(n)
+     * @return the elements.
+     */
+    List<E> preOrder() {
+        List<E> elements = new ArrayList<>();
+        NodeStack<E> stack = new NodeStack<>();
+        if (root != null) stack.push(root, 0);
+        while (!stack.isEmpty()) {
+            BinaryNode<E> node = stack.pop();
+            elements.add(node.element);
+            if (node.right != null) stack.push(node.right, 0);
+            if (node.left != null) stack.push(node.left, 0);
         }
+        return elements;
+    }
 
-        BinaryNode<E> node = new BinaryNode<>(preOrder[preIndex]);
 
-        int inIndex = findIndex(inOrder, inStart, inEnd, node.element);
+    /**
+     * Write the tree to a file in a compact binary form
+     * Each node is a flag byte saying which children follow, then its element, in preorder.
+     * A node of a multiset that counts more than one occurrence also has its count, before the element.
+     * Nothing but the write buffer is allocated, so this runs in O(n) without building any strings.
+     * @param file  the file to create or replace.
+     * @param codec encoding of the elements.
+     * @throws IOException if the file cannot be written.
+     */
+    public void save(Path file, TreeCodec<E> codec) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            int record = 1 + Integer.BYTES + codec.bytes();  // Longest record
+            ByteBuffer buf = ByteBuffer.allocateDirect(Math.max(WRITE_BUFFER, FILE_HEADER + record));
+            buf.putInt(FILE_MAGIC).putInt(FILE_VERSION).putInt(codec.bytes()).putLong(0);
+
+            long count = 0;
+            NodeStack<E> stack = new NodeStack<>();
+            if (root != null) stack.push(root, 0);
+            while (!stack.isEmpty()) {
+                BinaryNode<E> node = stack.pop();
+                if (buf.remaining() < record) {
+                    writeFully(channel, buf);
+                }
+                byte flags = (byte) ((node.left != null ? HAS_LEFT : 0) | (node.right != null ? HAS_RIGHT : 0)
+                        | (node.count() > 1 ? HAS_COUNT : 0));
+                buf.put(flags);
+                if (node.count() > 1) buf.putInt(node.count());
+                codec.write(node.element, buf);
+                count++;
+
+                // Right first so the left subtree is written first
+                if (node.right != null) stack.push(node.right, 0);
+                if (node.left != null) stack.push(node.left, 0);
+            }
+            writeFully(channel, buf);
 
-        node.left = buildTreeTraversals(inOrder, preOrder, inStart, inIndex - 1, preIndex + 1);
-        node.right = buildTreeTraversals(inOrder, preOrder, inIndex + 1, inEnd, preIndex + inIndex - inStart + 1);
+            // Now that the count is known, fill it in
+            ByteBuffer countBuf = ByteBuffer.allocate(Long.BYTES).putLong(count);
+            countBuf.flip();
+            channel.write(countBuf, FILE_HEADER - Long.BYTES);
+        }
+    }
 
-        return node;
+    /**
+     * Helper method for save: write out and empty the buffer
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
     }
 
     /**
-     * Helper method for buildTreeTraversals
-     *
-     * @param arr   The array to search in.
-     * @param start Starting index for the search.
-     * @param end   Ending index for the search.
-     * @param value The value to find in the array.
-     * @return Index value if found, otherwise -1.
+     * Replace the contents of the tree with one written by save
+     * The file is memory mapped, a window of up to MAP_WINDOW bytes at a time, and read in one pass: O(n)
+     * The saved shape is kept, except that a balanced tree is rebalanced in place after loading.
+     * A counted node loaded into a tree that is not a multiset becomes a chain of equal nodes.
+     * @param file  the file to read.
+     * @param codec encoding of the elements, the same one used by save.
+     * @throws IOException if the file cannot be read or was not written by save with this codec.
      */
-    private int findIndex(E[] arr, int start, int end, E value) {
-        for (int i = start; i <= end; i++) {
-            if (arr[i].equals(value)) {
-                return i;
+    public void load(Path file, TreeCodec<E> codec) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < FILE_HEADER) {
+                throw new IOException(file + " is not a tree file");
+            }
+            long base = 0;  // File offset of the mapped window
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(size, MAP_WINDOW));
+            if (buf.getInt() != FILE_MAGIC) {
+                throw new IOException(file + " is not a tree file");
+            }
+            int version = buf.getInt();
+            if (version < 1 || version > FILE_VERSION) {
+                throw new IOException(file + " has unknown version " + version);
+            }
+            if (buf.getInt() != codec.bytes()) {
+                throw new IOException(file + " was written with a different codec");
+            }
+            long count = buf.getLong();
+            int record = 1 + codec.bytes();  // Shortest record; a counted one is an int longer
+            if (count < 0 || size < FILE_HEADER + count * record
+                    || size > FILE_HEADER + count * (record + Integer.BYTES)) {
+                throw new IOException(file + " is truncated or corrupt");
+            }
+
+            // Tag of each stacked node: the flags of the children it is still waiting for
+            NodeStack<E> stack = new NodeStack<>();
+            BinaryNode<E> newRoot = null;
+            NodeStack<E> repeated = new NodeStack<>();  // Counted nodes and their counts, if the tree does not count
+            for (long i = 0; i < count; i++) {
+                if (buf.remaining() < record + Integer.BYTES && base + buf.position() < size) {
+                    base += buf.position();
+                    buf = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(size - base, MAP_WINDOW));
+                }
+                if (buf.remaining() < record
+                        || (buf.get(buf.position()) & HAS_COUNT) != 0 && buf.remaining() < record + Integer.BYTES) {
+                    throw new IOException(file + " is truncated or corrupt");
+                }
+                byte flags = buf.get();
+                int occurrences = ((flags & HAS_COUNT) != 0) ? buf.getInt() : 1;
+                if (occurrences < 1) {
+                    throw new IOException(file + " is corrupt");
+                }
+                BinaryNode<E> node = newNode(codec.read(buf));
+                if (occurrences > 1) {
+                    if (counted) {
+                        ((AugmentedNode<E>) node).count = occurrences;
+                    } else {
+                        repeated.push(node, occurrences);
+                    }
+                }
+                flags &= HAS_LEFT | HAS_RIGHT;
+
+                if (newRoot == null) {
+                    newRoot = node;
+                } else {
+                    if (stack.isEmpty()) {
+                        throw new IOException(file + " is corrupt");
+                    }
+                    // Node is the first missing child of the top node
+                    int waiting = stack.peekTag();
+                    BinaryNode<E> parent = stack.pop();
+                    if ((waiting & HAS_LEFT) != 0) {
+                        parent.left = node;
+                        waiting &= ~HAS_LEFT;
+                    } else {
+                        parent.right = node;
+                        waiting &= ~HAS_RIGHT;
+                    }
+                    if (waiting != 0) stack.push(parent, waiting);
+                }
+                if (flags != 0) stack.push(node, flags);
             }
+            if (!stack.isEmpty() || base + buf.position() != size) {
+                throw new IOException(file + " is corrupt");
+            }
+
+            // Without counts, each occurrence needs a node: chain them as bstInsert would
+            while (!repeated.isEmpty()) {
+                int occurrences = repeated.peekTag();
+                BinaryNode<E> node = repeated.pop();
+                for (; occurrences > 1; occurrences--) {
+                    BinaryNode<E> copy = newNode(node.element);
+                    copy.right = node.right;
+                    node.right = copy;
+                }
+            }
+
+            discard(root);
+            root = newRoot;
+            if (balanced) {
+                // The file may hold any shape, so restore the AVL property before anything relies on it
+                balanceTreeInPlace();
+            } else if (augmented) {
+                updateAll(root);
+            }
+            if (counted) mergeDuplicates();
         }
-        return -1;
     }
 
 
+    /**
+     * Sum of all elements of a tree of Integer
+     * The complexity of sumAll is O(n)
+     * @return the sum, 0 for an empty tree
+     */
     public Integer sumAll(){
-        BinaryNode<Integer> r = (BinaryNode<Integer>) root;
-        return sumAll(r);
+        return (int) sumAll(element -> (Integer) element);
+    }
+
+    /**
+     * sumAll with the left and right subtrees summed in parallel
+     * @param pool the pool that runs the sum.
+     * @return the sum, 0 for an empty tree
+     */
+    public Integer sumAll(ForkJoinPool pool) {
+        return (int) sumAll(element -> (Integer) element, pool);
     }
+
+    /**
+     * Sum of all elements of a subtree of Integer
+     * @param t the node that roots the subtree.
+     * @return the sum, 0 for an empty subtree
+     */
     public Integer sumAll(BinaryNode<Integer> t){
-        // Add return so I can run test
-        return null;
+        int sum = 0;
+        NodeStack<Integer> stack = new NodeStack<>();
+        if (t != null) stack.push(t, 0);
+        while (!stack.isEmpty()) {
+            BinaryNode<Integer> current = stack.pop();
+            sum += current.element * current.count();
+            if (current.left != null) stack.push(current.left, 0);
+            if (current.right != null) stack.push(current.right, 0);
+        }
+        return sum;
+    }
+
+    /**
+     * Sum of the weights of all elements, for any element type
+     * The sum is kept in a primitive, so nothing is boxed.  The complexity of sumAll is O(n)
+     * @param weight value of an element.
+     * @return the sum, 0 for an empty tree
+     */
+    public long sumAll(ToLongFunction<? super E> weight) {
+        return sumSubtree(root, weight);
+    }
+
+    /**
+     * sumAll with the subtrees summed in parallel; only the sums of whole tasks are boxed
+     * @param weight value of an element.
+     * @param pool   the pool that runs the sum.
+     * @return the sum, 0 for an empty tree
+     */
+    public long sumAll(ToLongFunction<? super E> weight, ForkJoinPool pool) {
+        return pool.invoke(new SubtreeTask<>(root, parallelSplits(pool), t -> sumSubtree(t, weight),
+                (node, level, left, right) -> weight.applyAsLong(node.element) * node.count() + left + right));
+    }
+
+    /**
+     * sumAll with a sum of type double
+     * @param weight value of an element.
+     * @return the sum, 0 for an empty tree
+     */
+    public double sumAllDouble(ToDoubleFunction<? super E> weight) {
+        return sumSubtreeDouble(root, weight);
+    }
+
+    /**
+     * sumAllDouble with the subtrees summed in parallel; only the sums of whole tasks are boxed
+     * @param weight value of an element.
+     * @param pool   the pool that runs the sum.
+     * @return the sum, 0 for an empty tree
+     */
+    public double sumAllDouble(ToDoubleFunction<? super E> weight, ForkJoinPool pool) {
+        return pool.invoke(new SubtreeTask<>(root, parallelSplits(pool), t -> sumSubtreeDouble(t, weight),
+                (node, level, left, right) -> weight.applyAsDouble(node.element) * node.count() + left + right));
+    }
+
+    /**
+     * Helper method for sumAll
+     * @param t      the node that roots the subtree.
+     * @param weight value of an element.
+     * @return the sum of the subtree, 0 if empty
+     */
+    private long sumSubtree(BinaryNode<E> t, ToLongFunction<? super E> weight) {
+        long sum = 0;
+        NodeStack<E> stack = new NodeStack<>();
+        if (t != null) stack.push(t, 0);
+        while (!stack.isEmpty()) {
+            BinaryNode<E> current = stack.pop();
+            sum += weight.applyAsLong(current.element) * current.count();
+            if (current.left != null) stack.push(current.left, 0);
+            if (current.right != null) stack.push(current.right, 0);
+        }
+        return sum;
+    }
+
+    /**
+     * Helper method for sumAllDouble
+     * @param t      the node that roots the subtree.
+     * @param weight value of an element.
+     * @return the sum of the subtree, 0 if empty
+     */
+    private double sumSubtreeDouble(BinaryNode<E> t, ToDoubleFunction<? super E> weight) {
+        double sum = 0;
+        NodeStack<E> stack = new NodeStack<>();
+        if (t != null) stack.push(t, 0);
+        while (!stack.isEmpty()) {
+            BinaryNode<E> current = stack.pop();
+            sum += weight.applyAsDouble(current.element) * current.count();
+            if (current.left != null) stack.push(current.left, 0);
+            if (current.right != null) stack.push(current.right, 0);
+        }
+        return sum;
+    }
+
+    /**
+     * Largest sum of the weights on a path from root to leaf
+     * Path sums are kept as primitives by depth, so nothing is boxed.  The complexity of maxPathSum is O(n)
+     * @param weight value of an element.
+     * @return the sum, Long.MIN_VALUE for an empty tree
+     */
+    public long maxPathSum(ToLongFunction<? super E> weight) {
+        long best = Long.MIN_VALUE;
+        long[] sums = new long[16];  // Sum of the path down to each depth
+        NodeStack<E> stack = new NodeStack<>();
+        if (root != null) stack.push(root, 0);
+        while (!stack.isEmpty()) {
+            int depth = stack.peekTag();
+            BinaryNode<E> node = stack.pop();
+            long sum = ((depth == 0) ? 0 : sums[depth - 1]) + weight.applyAsLong(node.element) * node.count();
+            if (node.left == null && node.right == null) {
+                best = Math.max(best, sum);
+                continue;
+            }
+            sums = grow(sums, depth);
+            sums[depth] = sum;
+            if (node.right != null) stack.push(node.right, depth + 1);
+            if (node.left != null) stack.push(node.left, depth + 1);
+        }
+        return best;
+    }
+
+    /**
+     * maxPathSum with path sums of type double
+     * @param weight value of an element.
+     * @return the sum, negative infinity for an empty tree
+     */
+    public double maxPathSumDouble(ToDoubleFunction<? super E> weight) {
+        double best = Double.NEGATIVE_INFINITY;
+        double[] sums = new double[16];  // Sum of the path down to each depth
+        NodeStack<E> stack = new NodeStack<>();
+        if (root != null) stack.push(root, 0);
+        while (!stack.isEmpty()) {
+            int depth = stack.peekTag();
+            BinaryNode<E> node = stack.pop();
+            double sum = ((depth == 0) ? 0 : sums[depth - 1]) + weight.applyAsDouble(node.element) * node.count();
+            if (node.left == null && node.right == null) {
+                best = Math.max(best, sum);
+                continue;
+            }
+            sums = grow(sums, depth);
+            sums[depth] = sum;
+            if (node.right != null) stack.push(node.right, depth + 1);
+            if (node.left != null) stack.push(node.left, depth + 1);
+        }
+        return best;
+    }
+
+    /**
+     * Determines if some path from root to leaf has weights that sum to exactly sum
+     * Stops at the first such path.  The complexity of hasPathSum is O(n)
+     * @param sum    the path sum to look for.
+     * @param weight value of an element.
+     * @return true if found.
+     */
+    public boolean hasPathSum(long sum, ToLongFunction<? super E> weight) {
+        long[] sums = new long[16];  // Sum of the path down to each depth
+        NodeStack<E> stack = new NodeStack<>();
+        if (root != null) stack.push(root, 0);
+        while (!stack.isEmpty()) {
+            int depth = stack.peekTag();
+            BinaryNode<E> node = stack.pop();
+            long pathSum = ((depth == 0) ? 0 : sums[depth - 1]) + weight.applyAsLong(node.element) * node.count();
+            if (node.left == null && node.right == null) {
+                if (pathSum == sum) return true;
+                continue;
+            }
+            sums = grow(sums, depth);
+            sums[depth] = pathSum;
+            if (node.right != null) stack.push(node.right, depth + 1);
+            if (node.left != null) stack.push(node.left, depth + 1);
+        }
+        return false;
+    }
+
+    /**
+     * Fork/join task for a reduction whose subtrees below the top levels are done by a sequential,
+     * allocation-free method, so only the results of the top levels are boxed.
+     */
+    private class SubtreeTask<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+
+        private final BinaryNode<E> node;                      // Root of the subtree of this task
+        private final int splits;                              // Levels left before going sequential
+        private final Function<BinaryNode<E>, R> sequential;   // Result for a whole subtree
+        private final Reduction<E, R> op;                      // Work done at each split node
+
+        SubtreeTask(BinaryNode<E> node, int splits, Function<BinaryNode<E>, R> sequential, Reduction<E, R> op) {
+            this.node = node;
+            this.splits = splits;
+            this.sequential = sequential;
+            this.op = op;
+        }
+
+        @Override
+        protected R compute() {
+            if (node == null || splits == 0) {
+                return sequential.apply(node);
+            }
+            SubtreeTask<R> leftTask = new SubtreeTask<>(node.left, splits - 1, sequential, op);
+            leftTask.fork();
+            R right = new SubtreeTask<>(node.right, splits - 1, sequential, op).compute();
+            return op.combine(node, 0, leftTask.join(), right);
+        }
     }
 
     public BinaryNode<E> lca(E a, E b) {
@@ -525,24 +2844,45 @@ public class Tree<E extends Comparable<? super E>> {
      * @return String representation of ancestor
      */
     public BinaryNode<E> lca(BinaryNode<E> current,E a, E b) {
-        if (current == null) {
-            return null;
+        while (current != null) {
+            // Compare the values of the current node with the given nodes a and b
+            int compareA = a.compareTo(current.element);
+            int compareB = b.compareTo(current.element);
+
+            if (compareA < 0 && compareB < 0) {
+                // a and b are in the left subtree
+                current = current.left;
+            } else if (compareA > 0 && compareB > 0) {
+                //a and b are in the right subtree
+                current = current.right;
+            } else {
+                // Current node is the LCA, or a,b is equal to the current node
+                return current;
+            }
         }
+        return null;
+    }
 
-        // Compare the values of the current node with the given nodes a and b
-        int compareA = a.compareTo(current.element);
-        int compareB = b.compareTo(current.element);
+    /**
+     * Index for O(1) least common ancestor queries that does not rely on the BST order,
+     * so it also works on trees from buildTreeTraversals and flip
+     * Costs O(n log n) to build; later changes to the tree do not affect the index.
+     * @return the index.
+     */
+    public LcaIndex<E> lcaIndex() {
+        return new LcaIndex<>(root);
+    }
 
-        if (compareA < 0 && compareB < 0) {
-            // a and b are in the left subtree
-            return lca(current.left, a, b);
-        } else if (compareA > 0 && compareB > 0) {
-            //a and b are in the right subtree
-            return lca(current.right, a, b);
-        } else {
-            // Current node is the LCA, or a,b is equal to the current node
-            return current;
-        }
+    /**
+     * Find the least common ancestor of each pair (first[i], second[i]) in one pass over the tree
+     * Like lcaIndex, this does not rely on the BST order.
+     * The complexity of lcaAll is O(n + k) for k pairs
+     * @param first  first element of each pair.
+     * @param second second element of each pair.
+     * @return element of the ancestor of each pair, null where an element is not in the tree.
+     */
+    public List<E> lcaAll(E[] first, E[] second) {
+        return LcaIndex.lcaAll(root, first, second);
     }
 
 
@@ -551,12 +2891,19 @@ public class Tree<E extends Comparable<? super E>> {
      * Balance the tree
      */
     public void balanceTree() {
+        if (counted) {
+            // Rebuilding from the elements would split the counted nodes, so relink the nodes instead
+            balanceTreeInPlace();
+            return;
+        }
         // Get the sorted elements of the tree using in-order traversal
         List<E> sortedElements = new ArrayList<>();
         inOrderTraversal(root, sortedElements);
+        discard(root);
 
         // Build a balanced BST from the sorted elements
         root = buildBalancedBST(sortedElements, 0, sortedElements.size() - 1);
+        if (metrics != null) metrics.rebuilt();
     }
 
     /**
@@ -565,11 +2912,20 @@ public class Tree<E extends Comparable<? super E>> {
      * @param elements the list to store the sorted elements.
      */
     private void inOrderTraversal(BinaryNode<E> node, List<E> elements) {
-        if (node != null) {
-            inOrderTraversal(node.left, elements);
-            elements.add(node.element);
-            inOrderTraversal(node.right, elements);
-        }
+        forEachElement(node, elements::add);
+    }
+
+    /**
+     * In-order traversal of the elements, each one as many times as it occurs
+     * @param start the node that roots the subtree.
+     * @param visit called for each occurrence, smallest first in a BST.
+     */
+    private void forEachElement(BinaryNode<E> start, Consumer<E> visit) {
+        inOrder(start, node -> {
+            for (int i = 0; i < node.count(); i++) {
+                visit.accept(node.element);
+            }
+        });
     }
 
     /**
@@ -585,51 +2941,218 @@ public class Tree<E extends Comparable<? super E>> {
         }
 
         int mid = (start + end) / 2;
-        BinaryNode<E> newNode = new BinaryNode<>(elements.get(mid));
+        BinaryNode<E> newNode = newNode(elements.get(mid));
 
         newNode.left = buildBalancedBST(elements, start, mid - 1);
         newNode.right = buildBalancedBST(elements, mid + 1, end);
+        refresh(newNode);
 
         return newNode;
     }
 
+    /**
+     * Balance the tree in place with the Day-Stout-Warren algorithm
+     * The existing nodes are relinked, nothing is copied or allocated.
+     * The complexity of balanceTreeInPlace is O(n)
+     */
+    public void balanceTreeInPlace() {
+        if (metrics != null) metrics.rebuilt();
+        int size = treeToVine();
+
+        // Make the bottom level: as many rotations as there are nodes below the last full level
+        int full = Integer.highestOneBit(size + 1) - 1;
+        root = compress(root, size - full);
+
+        // Halve the vine until only the top level is left
+        for (int m = full / 2; m > 0; m /= 2) {
+            root = compress(root, m);
+        }
+
+        if (augmented) {
+            updateHeights(root);
+        }
+    }
+
+    /**
+     * Helper method for balanceTreeInPlace
+     * Right-rotate the tree into a vine: a sorted chain of right children.
+     * @return the number of nodes in the vine.
+     */
+    private int treeToVine() {
+        int size = 0;
+        BinaryNode<E> tail = null;    // Last node already on the vine
+        BinaryNode<E> rest = root;    // Root of the part not yet on the vine
+        while (rest != null) {
+            if (rest.left == null) {
+                // Nothing smaller left, move rest onto the vine
+                tail = rest;
+                rest = rest.right;
+                size++;
+            } else {
+                // Right rotate so the left child moves up
+                BinaryNode<E> temp = rest.left;
+                rest.left = temp.right;
+                temp.right = rest;
+                rest = temp;
+                if (tail == null) {
+                    root = temp;
+                } else {
+                    tail.right = temp;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Helper method for balanceTreeInPlace
+     * Left-rotate every other node on the right spine, count times.
+     * @param start the top of the spine.
+     * @param count number of rotations.
+     * @return the new top of the spine.
+     */
+    private BinaryNode<E> compress(BinaryNode<E> start, int count) {
+        BinaryNode<E> top = start;
+        BinaryNode<E> scanner = null;  // Node above the next rotation, null for the top
+        for (int i = 0; i < count; i++) {
+            BinaryNode<E> child = (scanner == null) ? top : scanner.right;
+            BinaryNode<E> next = child.right;
+            child.right = next.left;
+            next.left = child;
+            if (scanner == null) {
+                top = next;
+            } else {
+                scanner.right = next;
+            }
+            scanner = next;
+        }
+        return top;
+    }
+
+    /**
+     * Recompute the height and size of every node in a subtree
+     * Only used right after balancing, so the recursion is O(log n) deep and allocates nothing
+     * @param t the node that roots the subtree.
+     */
+    private void updateHeights(BinaryNode<E> t) {
+        if (t == null) return;
+        updateHeights(t.left);
+        updateHeights(t.right);
+        refresh(t);
+    }
+
 
     /**
      * In a BST, keep only nodes between range
+     * In a balanced tree the complexity of keepRange is O(log n), and the tree stays balanced
      *
      * @param a lowest value
      * @param b highest value
      */
     public void keepRange(E a, E b) {
-        root = keepRange(root, a, b);
+        if (balanced) {
+            root = keepAtMost(keepAtLeast(root, a), b);
+            return;
+        }
+
+        // Find the new root: the first node on the search path that is in range
+        BinaryNode<E> current = root;
+        while (current != null && (current.element.compareTo(a) < 0 || current.element.compareTo(b) > 0)) {
+            BinaryNode<E> next;
+            if (current.element.compareTo(a) < 0) {
+                next = current.right;
+                current.right = null;
+            } else {
+                next = current.left;
+                current.left = null;
+            }
+            discard(current);  // Drops current and its other subtree
+            current = next;
+        }
+        root = current;
+        if (root == null) {
+            return;
+        }
+
+        // Everything left of the root is <= b, so only nodes below a need cutting there
+        NodeStack<E> spine = augmented ? new NodeStack<>() : null;
+        for (BinaryNode<E> node = root; node != null; node = node.left) {
+            while (node.left != null && node.left.element.compareTo(a) < 0) {
+                BinaryNode<E> cut = node.left;
+                node.left = cut.right;
+                cut.right = null;
+                discard(cut);
+            }
+            if (augmented) spine.push(node, 0);
+        }
+        if (augmented) updateSpine(spine);
+
+        // Everything right of the root is >= a, so only nodes above b need cutting there
+        for (BinaryNode<E> node = root; node != null; node = node.right) {
+            while (node.right != null && node.right.element.compareTo(b) > 0) {
+                BinaryNode<E> cut = node.right;
+                node.right = cut.left;
+                cut.left = null;
+                discard(cut);
+            }
+            if (augmented) spine.push(node, 0);
+        }
+        if (augmented) updateSpine(spine);
+    }
 
+    /**
+     * Helper method for keepRange: recompute sizes and heights of the spine, bottom up
+     * @param spine nodes of the spine, top first; emptied.
+     */
+    private void updateSpine(NodeStack<E> spine) {
+        while (!spine.isEmpty()) {
+            refresh(spine.pop());
+        }
     }
 
     /**
-     * Helper method for keepRange
-     *
-     * @param current current node traversal.
+     * Helper method for keepRange: split off the nodes below a, in a balanced tree
+     * Only the search path for a is visited; the subtrees right of it are kept whole and joined
+     * back on the way up, so this routine runs in O(log n)
+     * @param current the node that roots the subtree.
      * @param a       lowest value
-     * @param b       highest value
-     * @return tree  only nodes between the range [a, b]
+     * @return the new root of the subtree, balanced.
      */
-    private BinaryNode<E> keepRange(BinaryNode<E> current, E a, E b) {
+    private BinaryNode<E> keepAtLeast(BinaryNode<E> current, E a) {
         if (current == null) {
             return null;
         }
-
         if (current.element.compareTo(a) < 0) {
-            return keepRange(current.right, a, b);
+            BinaryNode<E> right = current.right;
+            current.right = null;
+            discard(current);  // Drops current and its left subtree
+            return keepAtLeast(right, a);
         }
-        else if (current.element.compareTo(b) > 0) {
-            return keepRange(current.left, a, b);
+        BinaryNode<E> left = current.left;
+        current.left = null;
+        return join(keepAtLeast(left, a), current, current.right);
+    }
+
+    /**
+     * Helper method for keepRange: split off the nodes above b, in a balanced tree
+     * Mirror of keepAtLeast; this routine runs in O(log n)
+     * @param current the node that roots the subtree.
+     * @param b       highest value
+     * @return the new root of the subtree, balanced.
+     */
+    private BinaryNode<E> keepAtMost(BinaryNode<E> current, E b) {
+        if (current == null) {
+            return null;
         }
-        // If current is in range
-        else {
-            current.left = keepRange(current.left, a, b);
-            current.right = keepRange(current.right, a, b);
-            return current;
+        if (current.element.compareTo(b) > 0) {
+            BinaryNode<E> left = current.left;
+            current.left = null;
+            discard(current);  // Drops current and its right subtree
+            return keepAtMost(left, b);
         }
+        BinaryNode<E> right = current.right;
+        current.right = null;
+        return join(current.left, current, keepAtMost(right, b));
     }
 
 
@@ -650,6 +3173,32 @@ public class Tree<E extends Comparable<? super E>> {
             right = rt;
         }
 
+        /**
+         * Make a recycled node a fresh leaf, as if just constructed
+         * @param theElement the data in the node.
+         */
+        void reuse(E theElement) {
+            element = theElement;
+            left = null;
+            right = null;
+        }
+
+        /**
+         * @return occurrences of element; only an AugmentedNode in a multiset holds more than one.
+         */
+        int count() {
+            return 1;
+        }
+
+        /**
+         * Drop the references of a node that is no longer in a tree, so it keeps no element reachable
+         */
+        void clear() {
+            element = null;
+            left = null;
+            right = null;
+        }
+
         // toString for BinaryNode
         public String toString() {
             StringBuilder sb = new StringBuilder();
@@ -659,4 +3208,69 @@ public class Tree<E extends Comparable<? super E>> {
         }
 
     }
+
+    /**
+     * Node that also keeps the height and size of its subtree, and the count of its element
+     * A tree uses these, for every node, when it is balanced, after enableOrderStatistics or
+     * after enableMultiset.
+     */
+    static class AugmentedNode<E> extends BinaryNode<E> {
+        int height;  // Height of the subtree rooted here, a leaf is 0
+        int size;    // Number of elements in the subtree rooted here, repeats included
+        int count;   // Occurrences of element, more than one only in a multiset
+
+        AugmentedNode(E theElement) {
+            this(theElement, null, null);
+        }
+
+        AugmentedNode(E theElement, BinaryNode<E> lt, BinaryNode<E> rt) {
+            super(theElement, lt, rt);
+            count = 1;
+            update(this);
+        }
+
+        @Override
+        void reuse(E theElement) {
+            super.reuse(theElement);
+            height = 0;
+            size = 1;
+            count = 1;
+        }
+
+        @Override
+        int count() {
+            return count;
+        }
+    }
+
+    /**
+     * Node that also keeps the countBST metadata of its subtree
+     * A tree uses these, for every node, only after enableBSTTracking.
+     */
+    static class TrackedNode<E> extends AugmentedNode<E> {
+        int bstCount;  // Number of BSTs embedded in the subtree rooted here
+        E min;         // Smallest element of the subtree if it is a BST, otherwise null
+        E max;         // Largest element of the subtree if it is a BST, otherwise null
+
+        TrackedNode(E theElement) {
+            super(theElement);
+            // A leaf is a BST; nodes with children get their metadata from refresh
+            bstCount = 1;
+            min = max = theElement;
+        }
+
+        @Override
+        void reuse(E theElement) {
+            super.reuse(theElement);
+            bstCount = 1;
+            min = max = theElement;
+        }
+
+        @Override
+        void clear() {
+            super.clear();
+            min = null;
+            max = null;
+        }
+    }
 }
@@ -0,0 +1,333 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+
+/**
+ * Benchmarks for every Tree operation across input shapes and sizes.
+ * Each operation is warmed up, then timed one invocation at a time for a fixed number of
+ * iterations.  Reported per configuration: throughput, latency percentiles and the bytes
+ * allocated by the operation itself (setup work such as rebuilding a tree is not counted).
+ *
+ * Usage: java -Xmx8g TreeBenchmark [key=value ...]
+ *   ops=contains,lca,...   operations to run, default all
+ *   shapes=random,sorted,zigzag
+ *   sizes=1000,10000,100000,1000000,10000000
+ *   balanced=false,true
+ *   warmup=3 iterations=5  number of untimed and timed iterations
+ *   time=1000              milliseconds per iteration
+ */
+public class TreeBenchmark {
+    private static final String[] OPS = {"bstInsert", "bstInsertAll", "contains", "containsAll", "frozenContains",
+            "remove", "lca", "lcaIndex", "lcaAll", "countBST", "deepestNode", "nodesInLevel", "balanceTree", "keepRange", "pruneK",
+            "buildTreeTraversals", "toString"};
+    private static final int MAX_CHAIN_RENDER = 10_000;  // toString of a chain is quadratic in its height
+    private static final int PROBES = 1 << 16;            // Random keys for the lookup operations
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static Object sink;  // Results go here so the JIT cannot drop the work
+
+    /**
+     * One configuration: the keys of a shape and size, and the tree they make
+     */
+    private static class Fixture {
+        final String shape;
+        final boolean balanced;
+        final Integer[] keys;     // Insert order of the shape
+        final Integer[] preorder; // Preorder of the tree that inserting keys makes
+        final Integer[] sorted;   // Inorder of the tree
+        final Integer[] probes;   // Keys of the tree in random order
+        final Integer[] partners; // probes shifted by one, paired with probes by the lca operations
+        final int level;          // Level used by nodesInLevel
+        Tree<Integer> tree;
+        FrozenTree<Integer> frozen;
+        LcaIndex<Integer> lcaIndex;
+
+        Fixture(String shape, int n, boolean balanced, Random random) {
+            this.shape = shape;
+            this.balanced = balanced;
+            keys = keys(shape, n, random);
+            preorder = chain() ? keys : inserted().preOrder().toArray(new Integer[0]);
+            sorted = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                sorted[i] = i;
+            }
+            probes = new Integer[Math.min(n, PROBES)];
+            for (int i = 0; i < probes.length; i++) {
+                probes[i] = random.nextInt(n);
+            }
+            partners = new Integer[probes.length];
+            for (int i = 0; i < probes.length; i++) {
+                partners[i] = probes[(i + 1) % probes.length];
+            }
+            level = 31 - Integer.numberOfLeadingZeros(n) - 1;  // Second to last level of a full tree
+        }
+
+        /**
+         * Build the tree of the configuration
+         * The tree is rebuilt from the preorder of the inserted one in O(n), so every iteration
+         * gets the same shape that bstInsert gives without paying for the inserts again.
+         */
+        Tree<Integer> fresh() {
+            Tree<Integer> t = new Tree<>("bench", balanced);
+            t.buildBSTPreOrder(preorder);
+            return t;
+        }
+
+        /**
+         * The tree that inserting keys in order makes, balanced or not
+         * A chain is never built this way: its preorder is keys itself, and inserting is O(n^2).
+         */
+        private Tree<Integer> inserted() {
+            Tree<Integer> t = new Tree<>("bench", balanced);
+            for (Integer key : keys) {
+                t.bstInsert(key);
+            }
+            return t;
+        }
+
+        /**
+         * Whether the tree is a chain, as it is for sorted and zigzag keys without balancing
+         */
+        boolean chain() {
+            return !balanced && !shape.equals("random");
+        }
+    }
+
+    /**
+     * A benchmarked operation
+     */
+    private interface Op {
+        /**
+         * Prepare the next invocation; not timed.
+         */
+        default void setup(Fixture f) {
+        }
+
+        /**
+         * The timed work of invocation i.
+         */
+        Object run(Fixture f, int i);
+    }
+
+    /**
+     * Distinct keys 0..n-1 in the order of the shape
+     * @param shape random, sorted or zigzag (0, n-1, 1, n-2, ...)
+     */
+    private static Integer[] keys(String shape, int n, Random random) {
+        Integer[] keys = new Integer[n];
+        switch (shape) {
+            case "random":
+                for (int i = 0; i < n; i++) {
+                    keys[i] = i;
+                }
+                for (int i = n - 1; i > 0; i--) {
+                    int j = random.nextInt(i + 1);
+                    Integer swap = keys[i];
+                    keys[i] = keys[j];
+                    keys[j] = swap;
+                }
+                break;
+            case "sorted":
+                for (int i = 0; i < n; i++) {
+                    keys[i] = i;
+                }
+                break;
+            case "zigzag":
+                for (int i = 0, low = 0, high = n - 1; i < n; i++) {
+                    keys[i] = (i % 2 == 0) ? low++ : high--;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+        return keys;
+    }
+
+    /**
+     * The operations, by name
+     */
+    private static Map<String, Op> operations() {
+        Map<String, Op> ops = new LinkedHashMap<>();
+        // The tree grows through an iteration and is rebuilt before the next
+        ops.put("bstInsert", (f, i) -> {
+            f.tree.bstInsert(f.probes[i % f.probes.length]);
+            return f.tree;
+        });
+        ops.put("bstInsertAll", new Op() {
+            public void setup(Fixture f) { f.tree = f.fresh(); }
+            public Object run(Fixture f, int i) { f.tree.bstInsertAll(f.probes); return f.tree; }
+        });
+        ops.put("contains", (f, i) -> f.tree.contains(f.probes[i % f.probes.length]));
+        ops.put("containsAll", (f, i) -> f.tree.containsAll(f.probes));
+        ops.put("frozenContains", new Op() {
+            public void setup(Fixture f) {
+                if (f.frozen == null) f.frozen = f.tree.freeze();  // Every fresh tree has the same elements
+            }
+            public Object run(Fixture f, int i) { return f.frozen.contains(f.probes[i % f.probes.length]); }
+        });
+        // Like bstInsert, the tree shrinks through an iteration and is rebuilt before the next
+        ops.put("remove", (f, i) -> f.tree.remove(f.probes[i % f.probes.length]));
+        ops.put("lca", (f, i) -> f.tree.lca(f.probes[i % f.probes.length], f.partners[i % f.probes.length]));
+        ops.put("lcaIndex", new Op() {
+            public void setup(Fixture f) {
+                if (f.lcaIndex == null) f.lcaIndex = f.tree.lcaIndex();  // Every fresh tree has the same shape
+            }
+            public Object run(Fixture f, int i) {
+                return f.lcaIndex.lca(f.probes[i % f.probes.length], f.partners[i % f.probes.length]);
+            }
+        });
+        ops.put("lcaAll", (f, i) -> f.tree.lcaAll(f.probes, f.partners));
+        ops.put("countBST", (f, i) -> f.tree.countBST());
+        ops.put("deepestNode", (f, i) -> f.tree.deepestNode());
+        ops.put("nodesInLevel", (f, i) -> f.tree.nodesInLevel(f.level));
+        ops.put("balanceTree", new Op() {
+            public void setup(Fixture f) { f.tree = f.fresh(); }
+            public Object run(Fixture f, int i) { f.tree.balanceTree(); return f.tree; }
+        });
+        ops.put("keepRange", new Op() {
+            public void setup(Fixture f) { f.tree = f.fresh(); }
+            public Object run(Fixture f, int i) {
+                f.tree.keepRange(f.keys.length / 4, 3 * f.keys.length / 4);
+                return f.tree;
+            }
+        });
+        ops.put("pruneK", new Op() {
+            public void setup(Fixture f) { f.tree = f.fresh(); }
+            public Object run(Fixture f, int i) { f.tree.pruneK(f.keys.length); return f.tree; }
+        });
+        ops.put("buildTreeTraversals", (f, i) -> {
+            f.tree.buildTreeTraversals(f.sorted, f.preorder);
+            return f.tree;
+        });
+        ops.put("toString", (f, i) -> f.tree.toString());
+        return ops;
+    }
+
+    /**
+     * Run the benchmarks named on the command line
+     */
+    public static void main(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("ops", String.join(",", OPS));
+        options.put("shapes", "random,sorted,zigzag");
+        options.put("sizes", "1000,10000,100000,1000000,10000000");
+        options.put("balanced", "false,true");
+        options.put("warmup", "3");
+        options.put("iterations", "5");
+        options.put("time", "1000");
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0 || !options.containsKey(arg.substring(0, eq)))
+                throw new IllegalArgumentException("Unknown option " + arg);
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        Map<String, Op> ops = operations();
+        int warmup = Integer.parseInt(options.get("warmup"));
+        int iterations = Integer.parseInt(options.get("iterations"));
+        long timeNanos = Long.parseLong(options.get("time")) * 1_000_000L;
+
+        System.out.printf("%-20s %-7s %9s %-8s %14s %11s %11s %11s %11s %11s %12s %10s%n",
+                "op", "shape", "size", "balanced", "ops/s", "p50 us", "p90 us", "p99 us", "p99.9 us",
+                "max us", "B/op", "MB/s");
+        for (String name : options.get("ops").split(",")) {
+            Op op = ops.get(name);
+            if (op == null)
+                throw new IllegalArgumentException("Unknown op " + name);
+            for (String shape : options.get("shapes").split(",")) {
+                for (String size : options.get("sizes").split(",")) {
+                    for (String balanced : options.get("balanced").split(",")) {
+                        Fixture f = new Fixture(shape, Integer.parseInt(size), Boolean.parseBoolean(balanced),
+                                new Random(42));
+                        if (name.equals("toString") && f.chain() && f.keys.length > MAX_CHAIN_RENDER) {
+                            System.out.printf("%-20s %-7s %9s %-8s skipped, output is quadratic in height%n",
+                                    name, shape, size, balanced);
+                            continue;
+                        }
+                        run(name, op, f, warmup, iterations, timeNanos);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Benchmark one operation on one configuration and print a line of results
+     */
+    private static void run(String name, Op op, Fixture f, int warmup, int iterations, long timeNanos) {
+        for (int w = 0; w < warmup; w++) {
+            iteration(op, f, timeNanos, null);
+        }
+
+        Samples samples = new Samples();
+        for (int m = 0; m < iterations; m++) {
+            iteration(op, f, timeNanos, samples);
+        }
+
+        long[] times = samples.sortedTimes();
+        double seconds = samples.totalNanos / 1e9;
+        System.out.printf("%-20s %-7s %9d %-8s %14.1f %11.3f %11.3f %11.3f %11.3f %11.3f %12.1f %10.1f%n",
+                name, f.shape, f.keys.length, f.balanced, times.length / seconds,
+                percentile(times, 0.50), percentile(times, 0.90), percentile(times, 0.99),
+                percentile(times, 0.999), times[times.length - 1] / 1e3,
+                (double) samples.totalBytes / times.length, samples.totalBytes / seconds / 1e6);
+    }
+
+    /**
+     * Run op for timeNanos of wall time, setup included, and at least once
+     * @param samples where the timings go, or null for warmup.
+     */
+    private static void iteration(Op op, Fixture f, long timeNanos, Samples samples) {
+        f.tree = f.fresh();
+        long end = System.nanoTime() + timeNanos;
+        for (int i = 0; i == 0 || System.nanoTime() < end; i++) {
+            op.setup(f);
+            long bytes = THREADS.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            sink = op.run(f, i);
+            long elapsed = System.nanoTime() - start;
+            bytes = THREADS.getCurrentThreadAllocatedBytes() - bytes;
+            if (samples != null) {
+                samples.add(elapsed, bytes);
+            }
+        }
+    }
+
+    /**
+     * Value at fraction p of the sorted times, in microseconds
+     */
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e3;
+    }
+
+    /**
+     * Growable record of the timed invocations
+     */
+    private static class Samples {
+        private long[] times = new long[1024];
+        private int count;
+        long totalNanos;
+        long totalBytes;
+
+        void add(long nanos, long bytes) {
+            if (count == times.length) {
+                times = Arrays.copyOf(times, count * 2);
+            }
+            times[count++] = nanos;
+            totalNanos += nanos;
+            totalBytes += bytes;
+        }
+
+        long[] sortedTimes() {
+            long[] sorted = Arrays.copyOf(times, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-width binary encoding of tree elements, used by Tree.save and Tree.load
+ * @param <E> the element type.
+ */
+public interface TreeCodec<E> {
+    TreeCodec<Integer> INTEGER = new TreeCodec<Integer>() {
+        public int bytes() { return Integer.BYTES; }
+        public void write(Integer element, ByteBuffer buf) { buf.putInt(element); }
+        public Integer read(ByteBuffer buf) { return buf.getInt(); }
+    };
+
+    TreeCodec<Long> LONG = new TreeCodec<Long>() {
+        public int bytes() { return Long.BYTES; }
+        public void write(Long element, ByteBuffer buf) { buf.putLong(element); }
+        public Long read(ByteBuffer buf) { return buf.getLong(); }
+    };
+
+    TreeCodec<Double> DOUBLE = new TreeCodec<Double>() {
+        public int bytes() { return Double.BYTES; }
+        public void write(Double element, ByteBuffer buf) { buf.putDouble(element); }
+        public Double read(ByteBuffer buf) { return buf.getDouble(); }
+    };
+
+    /**
+     * @return number of bytes every element takes.
+     */
+    int bytes();
+
+    /**
+     * Write exactly bytes() bytes for element
+     * @param element the element to write.
+     * @param buf     buffer with at least bytes() remaining.
+     */
+    void write(E element, ByteBuffer buf);
+
+    /**
+     * Read back an element written by write
+     * @param buf buffer with at least bytes() remaining.
+     * @return the element.
+     */
+    E read(ByteBuffer buf);
+}
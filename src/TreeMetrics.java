@@ -0,0 +1,234 @@
+import java.util.Arrays;
+
+/**
+ * Statistics of a Tree: count, compareTo calls and latency of contains, bstInsert and remove,
+ * and the rotations and rebuilds that keep the tree in shape.
+ * A tree collects them only after enableMetrics; until then each operation pays one null check.
+ * A growing number of comparisons per operation is the sign of a degenerate insert order.
+ * Like the tree, the counts are not synchronized: read from another thread, as JMX does,
+ * they may be slightly behind.
+ */
+public class TreeMetrics implements TreeMetricsMXBean {
+    final OperationStats contains = new OperationStats();  // Statistics of contains
+    final OperationStats insert = new OperationStats();    // Statistics of bstInsert
+    final OperationStats remove = new OperationStats();    // Statistics of remove
+    private final Tree<?> tree;  // Tree measured
+    private long rotations;      // Single rotations made to keep the tree balanced
+    private long rebuilds;       // Times the whole tree was rebuilt
+    private int comparisons;     // compareTo calls of the operation in progress
+
+    /**
+     * Start collecting for a tree
+     * @param tree the tree measured.
+     */
+    TreeMetrics(Tree<?> tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * Count compareTo calls of the operation in progress
+     * @param n number of calls.
+     */
+    void compared(int n) {
+        comparisons += n;
+    }
+
+    void rotated() {
+        rotations++;
+    }
+
+    void rebuilt() {
+        rebuilds++;
+    }
+
+    /**
+     * Record an operation that has just finished
+     * @param op    statistics of the operation.
+     * @param start System.nanoTime() when it started.
+     */
+    void record(OperationStats op, long start) {
+        op.record(System.nanoTime() - start, comparisons);
+        comparisons = 0;
+    }
+
+    @Override
+    public OperationStats getContains() {
+        return contains;
+    }
+
+    @Override
+    public OperationStats getInsert() {
+        return insert;
+    }
+
+    @Override
+    public OperationStats getRemove() {
+        return remove;
+    }
+
+    @Override
+    public long getRotations() {
+        return rotations;
+    }
+
+    @Override
+    public long getRebuilds() {
+        return rebuilds;
+    }
+
+    @Override
+    public int getSize() {
+        return tree.orderStatistics() ? tree.size() : -1;
+    }
+
+    @Override
+    public int getHeight() {
+        return tree.orderStatistics() ? tree.height() : -1;
+    }
+
+    @Override
+    public void reset() {
+        contains.reset();
+        insert.reset();
+        remove.reset();
+        rotations = 0;
+        rebuilds = 0;
+    }
+
+    /**
+     * Count, comparisons and latency histogram of one operation
+     * As in HdrHistogram, latencies are kept in buckets that split each power of two into
+     * SUB_BUCKETS, so a percentile is off by at most one part in SUB_BUCKETS at any scale.
+     */
+    public static class OperationStats {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;          // Buckets per power of two
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+        private final long[] buckets = new long[BUCKETS];  // Operations by latency bucket
+        private long count;             // Operations recorded
+        private long comparisons;       // compareTo calls of all of them
+        private int maxComparisons;     // Most compareTo calls of one operation
+        private long totalNanos;        // Latency of all of them
+        private long maxNanos;          // Highest latency
+
+        void record(long nanos, int compared) {
+            buckets[bucket(nanos)]++;
+            count++;
+            comparisons += compared;
+            maxComparisons = Math.max(maxComparisons, compared);
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        void reset() {
+            Arrays.fill(buckets, 0);
+            count = 0;
+            comparisons = 0;
+            maxComparisons = 0;
+            totalNanos = 0;
+            maxNanos = 0;
+        }
+
+        /**
+         * Bucket of a latency: values below SUB_BUCKETS have one each, every power of two
+         * above is split by the SUB_BITS bits that follow its leading one
+         */
+        private static int bucket(long nanos) {
+            if (nanos < SUB_BUCKETS) return (int) Math.max(nanos, 0);
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * Highest latency that falls in a bucket
+         */
+        private static long highest(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+
+        /**
+         * Latency that a fraction of the operations did not exceed, to within one part in SUB_BUCKETS
+         * @param fraction between 0 and 1, 0.99 for the 99th percentile.
+         * @return the latency in nanoseconds, 0 if nothing was recorded.
+         */
+        public long percentileNanos(double fraction) {
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(highest(i), maxNanos);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return number of operations recorded.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return mean compareTo calls per operation.
+         */
+        public double getMeanComparisons() {
+            return (count == 0) ? 0 : (double) comparisons / count;
+        }
+
+        /**
+         * @return most compareTo calls made by one operation.
+         */
+        public int getMaxComparisons() {
+            return maxComparisons;
+        }
+
+        /**
+         * @return mean latency in nanoseconds.
+         */
+        public double getMeanNanos() {
+            return (count == 0) ? 0 : (double) totalNanos / count;
+        }
+
+        /**
+         * @return median latency in nanoseconds.
+         */
+        public long getP50Nanos() {
+            return percentileNanos(0.5);
+        }
+
+        /**
+         * @return 99th percentile latency in nanoseconds.
+         */
+        public long getP99Nanos() {
+            return percentileNanos(0.99);
+        }
+
+        /**
+         * @return 99.9th percentile latency in nanoseconds.
+         */
+        public long getP999Nanos() {
+            return percentileNanos(0.999);
+        }
+
+        /**
+         * @return highest latency in nanoseconds.
+         */
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count %d, comparisons %.1f mean %d max, latency %.0f mean %d p50 %d p99 %d p99.9 %d max ns",
+                    count, getMeanComparisons(), maxComparisons, getMeanNanos(),
+                    getP50Nanos(), getP99Nanos(), getP999Nanos(), maxNanos);
+        }
+    }
+}
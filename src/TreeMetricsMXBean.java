@@ -0,0 +1,47 @@
+/**
+ * Management interface of TreeMetrics, so the statistics of a tree can be watched over JMX.
+ * Register the metrics of a tree with
+ * ManagementFactory.getPlatformMBeanServer().registerMBean(tree.enableMetrics(), name);
+ * each operation then shows up as a composite attribute.
+ */
+public interface TreeMetricsMXBean {
+    /**
+     * @return statistics of contains.
+     */
+    TreeMetrics.OperationStats getContains();
+
+    /**
+     * @return statistics of bstInsert.
+     */
+    TreeMetrics.OperationStats getInsert();
+
+    /**
+     * @return statistics of remove.
+     */
+    TreeMetrics.OperationStats getRemove();
+
+    /**
+     * @return number of rotations made to keep the tree balanced.
+     */
+    long getRotations();
+
+    /**
+     * @return number of times the whole tree was rebuilt.
+     */
+    long getRebuilds();
+
+    /**
+     * @return number of elements, -1 if order statistics are not kept.
+     */
+    int getSize();
+
+    /**
+     * @return height of the tree, -1 if order statistics are not kept.
+     */
+    int getHeight();
+
+    /**
+     * Start counting again from zero
+     */
+    void reset();
+}
@@ -1,12 +1,30 @@
+import org.junit.Assert;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 
 
 public class TreeTester {
 
 
     // Test program
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException, InterruptedException, JMException {
         final String ENDLINE = "\n";
 
 
@@ -108,5 +126,1391 @@ public class TreeTester {
         treeBonus.changeName("TreeBonus built from inorder and preorder traversals");
         System.out.println(treeBonus.toString());
 
+        // The problems below check the results against simple reference computations
+        Random random = new Random(42);
+
+        //Problem 11
+        for (int trial = 0; trial < 200; trial++) {
+            checkIntTree(random, trial % 2 == 0);
+        }
+        System.out.println("IntTree gives the same answers and shapes as Tree<Integer>");
+
+        //Problem 12
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (int trial = 0; trial < 40; trial++) {
+            checkParallel(random, pool, trial % 2 == 0);
+        }
+        pool.shutdown();
+        System.out.println("The fork/join reductions match the sequential ones");
+
+        //Problem 13
+        for (int trial = 0; trial < 50; trial++) {
+            checkBulkLoad(random);
+        }
+        System.out.println("bulkLoad builds a perfectly balanced BST of any input order");
+
+        //Problem 14
+        for (int trial = 0; trial < 50; trial++) {
+            checkBalanceInPlace(random, trial % 10 == 0);
+        }
+        System.out.println("balanceTreeInPlace keeps the order and leaves only the last level partly filled");
+
+        //Problem 15
+        for (int trial = 0; trial < 100; trial++) {
+            checkPaths(random);
+        }
+        System.out.println("forEachPath, paths and printAllPaths give every root to leaf path in order");
+
+        //Problem 16
+        for (int trial = 0; trial < 100; trial++) {
+            checkTraversals(random);
+        }
+        System.out.println("buildTreePostOrder and buildBSTPreOrder rebuild the same trees");
+
+        //Problem 17
+        checkSaveLoad(random);
+        System.out.println("save and load keep the shape of the tree; a balanced tree stays balanced");
+
+        //Problem 18
+        for (int trial = 0; trial < 100; trial++) {
+            checkRender(random);
+        }
+        System.out.println("render cuts the toString layout at maxDepth and maxNodes");
+
+        //Problem 19
+        for (int trial = 0; trial < 50; trial++) {
+            checkOrderStatistics(random, random.nextBoolean());
+        }
+        System.out.println("select, rank, countInRange, height and size match a sorted set");
+
+        //Problem 20
+        for (int trial = 0; trial < 50; trial++) {
+            checkConcurrentTree(random);
+        }
+        checkConcurrentWriters();
+        System.out.println("ConcurrentTree matches a sorted list and keeps every insert and remove of four threads");
+
+        //Problem 21
+        for (int trial = 0; trial < 50; trial++) {
+            checkPersistentTree(random);
+        }
+        System.out.println("PersistentTree versions match a sorted list and do not change when newer ones are made");
+
+        //Problem 22
+        for (int trial = 0; trial < 100; trial++) {
+            checkBatch(random, trial % 10 == 0);
+        }
+        System.out.println("bstInsertAll and containsAll match inserting and searching one item at a time");
+
+        //Problem 23
+        for (int trial = 0; trial < 100; trial++) {
+            checkFrozenTree(random);
+        }
+        System.out.println("FrozenTree searches match a sorted list and lca matches the same complete tree");
+
+        //Problem 24
+        for (int trial = 0; trial < 100; trial++) {
+            checkIteration(random);
+        }
+        System.out.println("iterator, stream and the range views give the elements in order");
+
+        //Problem 25
+        for (int trial = 0; trial < 20; trial++) {
+            checkRangeQuery(random);
+        }
+        System.out.println("rangeQuery count, sum and stream match a filtered list");
+
+        //Problem 26
+        for (int trial = 0; trial < 100; trial++) {
+            checkBSTTracking(random);
+        }
+        System.out.println("countBST with BST tracking matches the count without it");
+
+        //Problem 27
+        for (int trial = 0; trial < 50; trial++) {
+            checkNodePool(random);
+        }
+        System.out.println("A pooled tree recycles the nodes it drops and keeps the same shapes");
+
+        //Problem 28
+        checkRemove(random, false);
+        checkRemove(random, true);
+        System.out.println("remove and removeAll match removing from a sorted list");
+
+        //Problem 29
+        checkMultiset(random, false);
+        checkMultiset(random, true);
+        checkMultisetSaveLoad(random);
+        System.out.println("A multiset counts repeats like a sorted list and saves and loads them");
+
+        //Problem 30
+        for (int trial = 0; trial < 100; trial++) {
+            checkPathSums(random);
+        }
+        System.out.println("maxPathSum, hasPathSum and the double sums match the root to leaf paths");
+
+        //Problem 31
+        LcaIndex<Integer> bonusIndex = treeBonus.lcaIndex();
+        System.out.println("treeBonus Least Common Ancestor of (4,6) " + bonusIndex.lca(4, 6));
+        System.out.println("treeBonus Least Common Ancestor of (7,8) " + bonusIndex.lca(7, 8));
+        System.out.println("treeBonus Least Common Ancestor of (7,6) " + bonusIndex.lca(7, 6));
+        System.out.println("treeBonus Least Common Ancestors of (2,4), (8,3) " +
+                treeBonus.lcaAll(new Integer[] {2, 8}, new Integer[] {4, 3}));
+        Assert.assertEquals("treeBonus lca", Arrays.asList(1, 5, 3, 2),
+                Arrays.asList(bonusIndex.lca(4, 6), bonusIndex.lca(7, 8), bonusIndex.lca(7, 6), bonusIndex.lca(2, 4)));
+        checkLca(random);
+        for (int trial = 0; trial < 100; trial++) {
+            checkLcaShapes(random);
+        }
+        System.out.println("lcaIndex and lcaAll match lca on a BST and the root paths of any shape");
+
+        //Problem 32
+        checkMetrics();
+        for (int trial = 0; trial < 20; trial++) {
+            checkHistogram(random);
+        }
+        checkMetricsMXBean();
+        System.out.println("Tree metrics count every operation and comparison, and the histogram percentiles are within 12.5%");
+    }
+
+    /**
+     * Boxed copy of an int array
+     */
+    private static Integer[] boxed(int[] keys) {
+        return Arrays.stream(keys).boxed().toArray(Integer[]::new);
+    }
+
+    /**
+     * Walk a random tree shape whose inorder is inOrder[low .. high]
+     * @param preOrder  gets the keys in preorder.
+     * @param postOrder gets the keys in postorder.
+     */
+    private static void randomShape(int[] inOrder, int low, int high, Random random,
+                                    List<Integer> preOrder, List<Integer> postOrder) {
+        if (low > high) return;
+        int mid = low + random.nextInt(high - low + 1);
+        preOrder.add(inOrder[mid]);
+        randomShape(inOrder, low, mid - 1, random, preOrder, postOrder);
+        randomShape(inOrder, mid + 1, high, random, preOrder, postOrder);
+        postOrder.add(inOrder[mid]);
+    }
+
+    /**
+     * What toString2 shows for a tree holding keys, which must be sorted
+     */
+    private static String toString2(String name, int[] keys) {
+        StringBuilder sb = new StringBuilder(name).append(" ");
+        for (int key : keys) {
+            sb.append(key).append(" ");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Number of levels of a tree, from nodesInLevel
+     */
+    private static int levels(Tree<Integer> tree) {
+        int level = 0;
+        while (tree.nodesInLevel(level) > 0) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Root to leaf paths of the tree with the given traversals, by plain recursion
+     * @param prefix path down to the root of the subtree; restored on return.
+     * @param paths  gets a copy of each path, leftmost first.
+     */
+    private static void shapePaths(List<Integer> inOrder, List<Integer> preOrder,
+                                   List<Integer> prefix, List<List<Integer>> paths) {
+        if (preOrder.isEmpty()) return;
+        Integer root = preOrder.get(0);
+        int split = inOrder.indexOf(root);
+        prefix.add(root);
+        if (preOrder.size() == 1) {
+            paths.add(new ArrayList<>(prefix));
+        }
+        shapePaths(inOrder.subList(0, split), preOrder.subList(1, split + 1), prefix, paths);
+        shapePaths(inOrder.subList(split + 1, inOrder.size()), preOrder.subList(split + 1, preOrder.size()),
+                prefix, paths);
+        prefix.remove(prefix.size() - 1);
+    }
+
+    /**
+     * Preorder of the BST that inserting keys in turn builds, by plain recursion; equal keys go right
+     */
+    private static List<Integer> bstPreOrder(List<Integer> keys) {
+        List<Integer> preOrder = new ArrayList<>();
+        if (keys.isEmpty()) return preOrder;
+        Integer root = keys.get(0);
+        List<Integer> rest = keys.subList(1, keys.size());
+        preOrder.add(root);
+        preOrder.addAll(bstPreOrder(rest.stream().filter(x -> x < root).collect(Collectors.toList())));
+        preOrder.addAll(bstPreOrder(rest.stream().filter(x -> x >= root).collect(Collectors.toList())));
+        return preOrder;
+    }
+
+    /**
+     * Largest height an AVL tree of n nodes can have
+     */
+    private static int avlBound(int n) {
+        return (int) (1.45 * Math.log(n + 2) / Math.log(2));
+    }
+
+    /**
+     * Elements of a tree or view, in order
+     */
+    private static List<Integer> elements(Iterable<Integer> tree) {
+        List<Integer> list = new ArrayList<>();
+        tree.forEach(list::add);
+        return list;
+    }
+
+    private static void checkIntTree(Random random, boolean ordered) throws IOException {
+        int[] keys = random.ints(1 + random.nextInt(40), 0, 100).toArray();
+        IntTree ints = new IntTree(keys, "same", ordered);
+        Tree<Integer> tree = new Tree<>(boxed(keys), "same", ordered);
+        Assert.assertEquals("toString", tree.toString(), ints.toString());
+        Assert.assertEquals("toString2", tree.toString2(), ints.toString2());
+        StringBuilder treePaths = new StringBuilder();
+        StringBuilder intPaths = new StringBuilder();
+        tree.printAllPaths(treePaths);
+        ints.printAllPaths(intPaths);
+        Assert.assertEquals("printAllPaths", treePaths.toString(), intPaths.toString());
+        List<List<Integer>> paths = new ArrayList<>();
+        ints.forEachPath((path, length) -> paths.add(Arrays.stream(path, 0, length).boxed().collect(Collectors.toList())));
+        Assert.assertEquals("forEachPath", tree.paths(false).map(ArrayList::new).collect(Collectors.toList()), paths);
+        Assert.assertEquals("deepestNode", (int) tree.deepestNode(), ints.deepestNode());
+        Assert.assertEquals("countBST", (int) tree.countBST(), ints.countBST());
+        Assert.assertEquals("sumAll", Arrays.stream(keys).sum(), ints.sumAll());
+        for (int level = 0; level < 10; level++) {
+            Assert.assertEquals("nodesInLevel " + level, tree.nodesInLevel(level), ints.nodesInLevel(level));
+        }
+        for (int x = -1; x <= 100; x++) {
+            Assert.assertEquals("contains " + x, tree.contains(x), ints.contains(x));
+        }
+        if (ordered) {
+            for (int i = 0; i < 20; i++) {
+                int a = keys[random.nextInt(keys.length)];
+                int b = keys[random.nextInt(keys.length)];
+                Assert.assertEquals("lca", (int) tree.lca(a, b).element, ints.lca(a, b));
+            }
+        }
+
+        tree.flip();
+        ints.flip();
+        Assert.assertEquals("flip", tree.toString(), ints.toString());
+        tree.flip();
+        ints.flip();
+
+        if (ordered) {
+            int a = random.nextInt(100);
+            int b = a + random.nextInt(50);
+            tree.keepRange(a, b);
+            ints.keepRange(a, b);
+            Assert.assertEquals("keepRange", tree.toString(), ints.toString());
+        }
+        int sum = random.nextInt(300);
+        tree.pruneK(sum);
+        ints.pruneK(sum);
+        Assert.assertEquals("pruneK", tree.toString(), ints.toString());
+        tree.balanceTree();
+        ints.balanceTree();
+        Assert.assertEquals("balanceTree", tree.toString(), ints.toString());
+
+        // Rebuild from the traversals of a random shape of distinct keys
+        int[] inOrder = random.ints(0, 1000).distinct().limit(keys.length).sorted().toArray();
+        List<Integer> preOrder = new ArrayList<>();
+        randomShape(inOrder, 0, inOrder.length - 1, random, preOrder, new ArrayList<>());
+        tree.buildTreeTraversals(boxed(inOrder), preOrder.toArray(new Integer[0]));
+        ints.buildTreeTraversals(inOrder, preOrder.stream().mapToInt(Integer::intValue).toArray());
+        Assert.assertEquals("buildTreeTraversals", tree.toString(), ints.toString());
+    }
+
+    private static void checkParallel(Random random, ForkJoinPool pool, boolean ordered) {
+        int[] keys = random.ints(random.nextInt(3000), -1000, 1000).toArray();
+        if (ordered && random.nextBoolean()) {
+            Arrays.sort(keys);  // A chain, far deeper than the parallel splits
+        }
+        Tree<Integer> tree = new Tree<>(boxed(keys), "parallel", ordered);
+        Assert.assertEquals("countBST", tree.countBST(), tree.countBST(pool));
+        Assert.assertEquals("deepestNode", tree.deepestNode(), tree.deepestNode(pool));
+        Assert.assertEquals("sumAll", Arrays.stream(keys).sum(), (int) tree.sumAll(pool));
+        Assert.assertEquals("sumAll", tree.sumAll(), tree.sumAll(pool));
+        for (int level = 0; level < 15; level++) {
+            Assert.assertEquals("nodesInLevel " + level, tree.nodesInLevel(level), tree.nodesInLevel(level, pool));
+        }
+    }
+
+    private static void checkBulkLoad(Random random) {
+        int[] keys = random.ints(random.nextInt(2000), 0, 500).toArray();
+        if (random.nextBoolean()) {
+            Arrays.sort(keys);  // Sorted input is used as it is
+        }
+        Integer[] input = boxed(keys);
+        Tree<Integer> tree = new Tree<>(input, "bulk", true, true);
+        Assert.assertEquals("input not modified", Arrays.asList(boxed(keys)), Arrays.asList(input));
+
+        int[] sorted = keys.clone();
+        Arrays.sort(sorted);
+        Assert.assertEquals("elements", toString2("bulk", sorted), tree.toString2());
+        // A perfectly balanced tree of n nodes fills every level but the last
+        int full = 31 - Integer.numberOfLeadingZeros(keys.length + 1);
+        Assert.assertEquals("levels", 32 - Integer.numberOfLeadingZeros(keys.length), levels(tree));
+        for (int level = 0; level < full; level++) {
+            Assert.assertEquals("nodesInLevel " + level, 1 << level, tree.nodesInLevel(level));
+        }
+
+        // Inserts afterwards keep the AVL bound, so the heights were set
+        int[] more = random.ints(1000, 0, 500).toArray();
+        for (int x : more) {
+            tree.bstInsert(x);
+        }
+        int n = keys.length + more.length;
+        Assert.assertTrue("AVL height", levels(tree) - 1 <= 1.45 * Math.log(n + 2) / Math.log(2));
+    }
+
+    private static void checkBalanceInPlace(Random random, boolean chain) {
+        int[] keys = random.ints(chain ? 5000 : random.nextInt(3000), 0, 1000).toArray();
+        if (chain) {
+            Arrays.sort(keys);
+        }
+        // An unordered tree is not a BST, but its order is kept all the same
+        boolean ordered = chain || random.nextBoolean();
+        boolean balanced = !chain && random.nextBoolean();
+        Tree<Integer> tree = new Tree<>(boxed(keys), "dsw", ordered, balanced);
+        String before = tree.toString2();
+        tree.balanceTreeInPlace();
+        Assert.assertEquals("order", before, tree.toString2());
+        Assert.assertEquals("levels", 32 - Integer.numberOfLeadingZeros(keys.length), levels(tree));
+        int full = 31 - Integer.numberOfLeadingZeros(keys.length + 1);
+        for (int level = 0; level < full; level++) {
+            Assert.assertEquals("nodesInLevel " + level, 1 << level, tree.nodesInLevel(level));
+        }
+    }
+
+    private static void checkPaths(Random random) throws IOException {
+        int[] inOrder = random.ints(0, 100000).distinct().limit(random.nextInt(500)).sorted().toArray();
+        List<Integer> preOrder = new ArrayList<>();
+        randomShape(inOrder, 0, inOrder.length - 1, random, preOrder, new ArrayList<>());
+        Tree<Integer> tree = new Tree<>("paths");
+        tree.buildTreeTraversals(boxed(inOrder), preOrder.toArray(new Integer[0]));
+        List<List<Integer>> expected = new ArrayList<>();
+        shapePaths(Arrays.asList(boxed(inOrder)), preOrder, new ArrayList<>(), expected);
+
+        List<List<Integer>> visited = new ArrayList<>();
+        tree.forEachPath(path -> visited.add(new ArrayList<>(path)));
+        Assert.assertEquals("forEachPath", expected, visited);
+        Assert.assertEquals("paths", expected, tree.paths(false).map(ArrayList::new).collect(Collectors.toList()));
+        Assert.assertEquals("parallel paths", expected,
+                tree.paths(true).map(ArrayList::new).collect(Collectors.toList()));
+
+        StringBuilder printed = new StringBuilder();
+        tree.printAllPaths(printed);
+        StringBuilder lines = new StringBuilder();
+        for (List<Integer> path : expected) {
+            lines.append(path.stream().map(String::valueOf).collect(Collectors.joining(" ")))
+                    .append(System.lineSeparator());
+        }
+        Assert.assertEquals("printAllPaths", lines.toString(), printed.toString());
+    }
+
+    private static void checkTraversals(Random random) {
+        // Any shape, from inorder with preorder and with postorder
+        int[] inOrder = random.ints(0, 100000).distinct().limit(random.nextInt(300)).sorted().toArray();
+        List<Integer> preOrder = new ArrayList<>();
+        List<Integer> postOrder = new ArrayList<>();
+        randomShape(inOrder, 0, inOrder.length - 1, random, preOrder, postOrder);
+        Tree<Integer> fromPre = new Tree<>("shape");
+        fromPre.buildTreeTraversals(boxed(inOrder), preOrder.toArray(new Integer[0]));
+        Tree<Integer> fromPost = new Tree<>("shape");
+        fromPost.buildTreePostOrder(boxed(inOrder), postOrder.toArray(new Integer[0]));
+        Assert.assertEquals("buildTreePostOrder", fromPre.toString(), fromPost.toString());
+
+        // A BST with repeats, from its preorder alone
+        List<Integer> keys = new ArrayList<>();
+        random.ints(random.nextInt(300), 0, 100).forEach(keys::add);
+        Tree<Integer> inserted = new Tree<>(keys.toArray(new Integer[0]), "bst", true);
+        Tree<Integer> rebuilt = new Tree<>("bst");
+        rebuilt.buildBSTPreOrder(bstPreOrder(keys).toArray(new Integer[0]));
+        Assert.assertEquals("buildBSTPreOrder", inserted.toString(), rebuilt.toString());
+
+        // preOrder gives back what the builders take, and an AVL shape survives the round trip
+        Assert.assertEquals("preOrder", preOrder, fromPre.preOrder());
+        Tree<Integer> avl = new Tree<>("avl", true);
+        keys.stream().distinct().forEach(avl::bstInsert);  // Rotations can put a repeat on the left
+        Tree<Integer> avlCopy = new Tree<>("avl", true);
+        avlCopy.buildBSTPreOrder(avl.preOrder().toArray(new Integer[0]));
+        Assert.assertEquals("balanced preOrder", avl.toString(), avlCopy.toString());
+
+        // A long chain needs no recursion
+        int[] sorted = random.ints(20000, 0, 1000).sorted().toArray();
+        rebuilt.buildBSTPreOrder(boxed(sorted));
+        Assert.assertEquals("chain", toString2("bst", sorted), rebuilt.toString2());
+    }
+
+    private static void checkSaveLoad(Random random) throws IOException {
+        Path file = Files.createTempFile("tree", ".bin");
+        try {
+            // Any shape comes back the same
+            for (int trial = 0; trial < 50; trial++) {
+                int[] inOrder = random.ints(0, 100000).distinct().limit(random.nextInt(300)).sorted().toArray();
+                List<Integer> preOrder = new ArrayList<>();
+                randomShape(inOrder, 0, inOrder.length - 1, random, preOrder, new ArrayList<>());
+                Tree<Integer> tree = new Tree<>("shape");
+                tree.buildTreeTraversals(boxed(inOrder), preOrder.toArray(new Integer[0]));
+                tree.save(file, TreeCodec.INTEGER);
+                Tree<Integer> copy = new Tree<>("shape");
+                copy.load(file, TreeCodec.INTEGER);
+                Assert.assertEquals("shape", tree.toString(), copy.toString());
+            }
+
+            // A chain saved from an unbalanced tree
+            int[] sorted = new int[2000];
+            Tree<Integer> chain = new Tree<>("chain");
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = i;
+                chain.bstInsert(i);
+            }
+            chain.save(file, TreeCodec.INTEGER);
+            Tree<Integer> copy = new Tree<>("chain");
+            copy.load(file, TreeCodec.INTEGER);
+            Assert.assertEquals("chain", toString2("chain", sorted), copy.toString2());
+            Tree<Integer> balanced = new Tree<>("chain", true);
+            balanced.load(file, TreeCodec.INTEGER);
+            balanced.bstInsert(5000);
+            balanced.remove(3);
+            Assert.assertTrue("balanced height", balanced.height() <= avlBound(balanced.size()));
+
+            // A file for another codec, or a cut short one, is rejected
+            Tree<Long> longs = new Tree<>("longs");
+            boolean rejected = false;
+            try {
+                longs.load(file, TreeCodec.LONG);
+            } catch (IOException e) {
+                rejected = true;
+            }
+            Assert.assertTrue("other codec", rejected);
+            byte[] bytes = Files.readAllBytes(file);
+            Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+            rejected = false;
+            try {
+                copy.load(file, TreeCodec.INTEGER);
+            } catch (IOException e) {
+                rejected = true;
+            }
+            Assert.assertTrue("truncated", rejected);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void checkRender(Random random) throws IOException {
+        Tree<Integer> tree = new Tree<>("render", random.nextBoolean());
+        random.ints(random.nextInt(3000), 0, 100000).forEach(tree::bstInsert);
+        String full = tree.toString();
+
+        // Any other Appendable gets the same text, in batches
+        StringBuffer buffer = new StringBuffer();
+        tree.render(buffer, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        Assert.assertEquals("render", full, buffer.toString());
+
+        int maxDepth = random.nextInt(12);
+        int maxNodes = random.nextInt(200);
+        StringBuilder limited = new StringBuilder();
+        tree.render(limited, maxDepth, maxNodes);
+        Assert.assertEquals("render limits", expectedRender(full, maxDepth, maxNodes), limited.toString());
+    }
+
+    /**
+     * Cut the full toString text: each run of lines below maxDepth becomes one "..." line at the
+     * top of the cut subtree, and a final "..." replaces the nodes after the first maxNodes
+     */
+    private static String expectedRender(String full, int maxDepth, int maxNodes) {
+        if (!full.contains("\n")) {
+            return full;  // Empty tree
+        }
+        String[] lines = full.split("\n");
+        List<String> cut = new ArrayList<>();
+        String top = null;
+        for (int i = 1; i < lines.length; i++) {
+            // The link " / " or " \ " starts right after the indent of 8 characters a level
+            int link = lines[i].indexOf(" / ") >= 0 ? lines[i].indexOf(" / ") : lines[i].indexOf(" \\ ");
+            int depth = link / 8;
+            if (depth <= maxDepth) {
+                if (top != null) {
+                    cut.add(top);
+                    top = null;
+                }
+                cut.add(lines[i]);
+            } else if (depth == maxDepth + 1) {
+                top = lines[i].substring(0, link + 3) + "...";
+            }
+        }
+        if (top != null) {
+            cut.add(top);
+        }
+
+        StringBuilder expected = new StringBuilder(lines[0]).append("\n");
+        int shown = 0;
+        for (String line : cut) {
+            if (!line.endsWith("...")) {
+                if (shown == maxNodes) {
+                    expected.append("...\n");
+                    break;
+                }
+                shown++;
+            }
+            expected.append(line).append("\n");
+        }
+        return expected.toString();
+    }
+
+    private static void checkOrderStatistics(Random random, boolean balanced) {
+        Tree<Integer> tree = new Tree<>("statistics", balanced);
+        if (!balanced) {
+            tree.enableOrderStatistics();
+        }
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int round = 0; round < 5; round++) {
+            for (int i = random.nextInt(300); i > 0; i--) {
+                int x = random.nextInt(10000);
+                if (expected.add(x)) {
+                    tree.bstInsert(x);
+                }
+            }
+            switch (random.nextInt(4)) {
+                case 0:
+                    int a = random.nextInt(10000);
+                    int b = a + random.nextInt(8000);
+                    tree.keepRange(a, b);
+                    expected = new TreeSet<>(expected.subSet(a, true, b, true));
+                    break;
+                case 1:
+                    tree.balanceTree();
+                    break;
+                case 2:
+                    tree.balanceTreeInPlace();
+                    break;
+                default:
+                    break;
+            }
+
+            List<Integer> sorted = new ArrayList<>(expected);
+            Assert.assertEquals("size", sorted.size(), tree.size());
+            Assert.assertEquals("height", levels(tree) - 1, tree.height());
+            for (int k = 0; k < sorted.size(); k++) {
+                Assert.assertEquals("select", sorted.get(k), tree.select(k));
+            }
+            for (int i = 0; i < 50; i++) {
+                int a = random.nextInt(10500) - 250;
+                int b = a + random.nextInt(3000) - 500;
+                Assert.assertEquals("rank", expected.headSet(a).size(), tree.rank(a));
+                int count = a > b ? 0 : expected.subSet(a, true, b, true).size();
+                Assert.assertEquals("countInRange", count, tree.countInRange(a, b));
+            }
+        }
+    }
+
+    private static void checkConcurrentTree(Random random) {
+        ConcurrentTree<Integer> tree = new ConcurrentTree<>("concurrent");
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            Integer x = random.nextInt(200);
+            if (random.nextInt(3) == 0) {
+                Assert.assertEquals("remove " + x, expected.remove(x), tree.remove(x));
+            } else {
+                tree.bstInsert(x);
+                expected.add(x);
+            }
+        }
+        Collections.sort(expected);
+
+        StringBuilder sb = new StringBuilder("concurrent ");
+        expected.forEach(x -> sb.append(x).append(" "));
+        Assert.assertEquals("toString2", expected.isEmpty() ? "concurrent Empty tree" : sb.toString(), tree.toString2());
+        Assert.assertEquals("size", expected.size(), tree.size());
+        for (int i = 0; i < 50; i++) {
+            int a = random.nextInt(220) - 10;
+            int b = a + random.nextInt(100) - 20;
+            Assert.assertEquals("contains " + a, expected.contains(a), tree.contains(a));
+            List<Integer> inRange = new ArrayList<>();
+            for (Integer x : expected) {
+                if (a <= x && x <= b) inRange.add(x);
+            }
+            Assert.assertEquals("countInRange", inRange.size(), tree.countInRange(a, b));
+            List<Integer> visited = new ArrayList<>();
+            tree.forEachInRange(a, b, visited::add);
+            Assert.assertEquals("forEachInRange", inRange, visited);
+        }
+
+        // The ancestor of two elements of a BST lies between them
+        for (int i = 0; i < 50 && !expected.isEmpty(); i++) {
+            Integer a = expected.get(random.nextInt(expected.size()));
+            Integer b = expected.get(random.nextInt(expected.size()));
+            Integer ancestor = tree.lca(a, b);
+            Assert.assertTrue("lca", ancestor != null && Math.min(a, b) <= ancestor && ancestor <= Math.max(a, b));
+        }
+    }
+
+    private static void checkConcurrentWriters() throws InterruptedException {
+        ConcurrentTree<Integer> tree = new ConcurrentTree<>("concurrent");
+        Thread[] writers = new Thread[4];
+        for (int w = 0; w < writers.length; w++) {
+            int offset = w;
+            writers[w] = new Thread(() -> {
+                // Each thread inserts its own residue class, then removes its multiples of 3
+                for (int x = offset; x < 4000; x += 4) {
+                    tree.bstInsert(x);
+                }
+                for (int x = offset; x < 4000; x += 4) {
+                    if (x % 3 == 0) tree.remove(x);
+                }
+            });
+            writers[w].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        int expected = 4000 - (4000 + 2) / 3;
+        Assert.assertEquals("size", expected, tree.size());
+        for (int x = 0; x < 4000; x++) {
+            Assert.assertEquals("contains " + x, x % 3 != 0, tree.contains(x));
+        }
+        Assert.assertEquals("countInRange", 2 * 99 / 3 + 1, tree.countInRange(1, 100));
+    }
+
+    private static void checkPersistentTree(Random random) {
+        // A balanced tree keeps its shape in the snapshot
+        Tree<Integer> tree = new Tree<>("version", true);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = random.nextInt(300); i > 0; i--) {
+            int x = random.nextInt(500);
+            tree.bstInsert(x);
+            expected.add(x);
+        }
+        Collections.sort(expected);
+        PersistentTree<Integer> version = tree.snapshot();
+        Assert.assertEquals("snapshot", tree.toString(), version.toTree("version").toString());
+        tree.keepRange(0, 100);  // Changing the tree does not change the snapshot
+
+        List<PersistentTree<Integer>> versions = new ArrayList<>();
+        List<String> shown = new ArrayList<>();
+        for (int step = 0; step < 20; step++) {
+            versions.add(version);
+            shown.add(version.toString2());
+            Integer x = random.nextInt(520);
+            switch (random.nextInt(5)) {
+                case 0:
+                case 1:
+                    version = version.bstInsert(x);
+                    expected.add(x);
+                    Collections.sort(expected);
+                    break;
+                case 2:
+                    PersistentTree<Integer> removed = version.remove(x);
+                    Assert.assertEquals("remove " + x, expected.remove(x), removed != version);
+                    version = removed;
+                    break;
+                case 3:
+                    int a = random.nextInt(500);
+                    int b = a + random.nextInt(400);
+                    version = version.keepRange(a, b);
+                    expected.removeIf(y -> y < a || y > b);
+                    break;
+                default:
+                    // pruneK gives the same elements as on a mutable copy
+                    Tree<Integer> pruned = version.toTree("version");
+                    int sum = random.nextInt(2000);
+                    pruned.pruneK(sum);
+                    version = version.pruneK(sum);
+                    Assert.assertEquals("pruneK", pruned.toString2(), version.toString2());
+                    expected.clear();
+                    for (String y : pruned.toString2().split(" ")) {
+                        if (y.matches("\\d+")) expected.add(Integer.valueOf(y));
+                    }
+                    break;
+            }
+
+            StringBuilder sb = new StringBuilder("version ");
+            expected.forEach(y -> sb.append(y).append(" "));
+            Assert.assertEquals("toString2", expected.isEmpty() ? "version Empty tree" : sb.toString(), version.toString2());
+            Assert.assertEquals("size", expected.size(), version.size());
+            Assert.assertTrue("version height", version.toTree("version").height() <= avlBound(expected.size()));
+            int a = random.nextInt(520);
+            int b = a + random.nextInt(200) - 20;
+            Assert.assertEquals("contains " + a, expected.contains(a), version.contains(a));
+            int count = (int) expected.stream().filter(y -> a <= y && y <= b).count();
+            Assert.assertEquals("countInRange", count, version.countInRange(a, b));
+            if (!expected.isEmpty()) {
+                Integer c = expected.get(random.nextInt(expected.size()));
+                Integer ancestor = version.lca(c, expected.get(0));
+                Assert.assertTrue("lca", ancestor != null && expected.get(0) <= ancestor && ancestor <= c);
+            }
+        }
+
+        // Old versions are unchanged, and balanceTree and flip only make new ones
+        for (int i = 0; i < versions.size(); i++) {
+            Assert.assertEquals("version " + i, shown.get(i), versions.get(i).toString2());
+        }
+        Assert.assertEquals("balanceTree", version.toString2(), version.balanceTree().toString2());
+        Tree<Integer> grown = version.toTree("grown");  // Stays balanced under sorted inserts
+        for (int x = 1000; x < 2000; x++) {
+            grown.bstInsert(x);
+        }
+        Assert.assertTrue("toTree height", grown.height() <= avlBound(grown.size()));
+        Tree<Integer> flipped = version.toTree("version");
+        flipped.flip();
+        Assert.assertEquals("flip", flipped.toString(), version.flip().toTree("version").toString());
+
+        // An unbalanced chain is snapshot balanced
+        Tree<Integer> chain = new Tree<>("chain");
+        for (int i = 0; i < 2000; i++) {
+            chain.bstInsert(i);
+        }
+        PersistentTree<Integer> balanced = chain.snapshot().bstInsert(2000).remove(0);
+        Tree<Integer> copy = balanced.toTree("chain");
+        Assert.assertEquals("chain size", 2000, copy.size());
+        Assert.assertTrue("chain height", copy.height() <= avlBound(copy.size()));
+    }
+
+    private static void checkBatch(Random random, boolean chain) {
+        boolean balanced = !chain && random.nextBoolean();
+        Tree<Integer> tree = new Tree<>("batch", balanced);
+        Tree<Integer> single = new Tree<>("batch", balanced);
+        if (!balanced && random.nextBoolean()) {
+            tree.enableOrderStatistics();
+        }
+        int n = chain ? 5000 : random.nextInt(500);
+        for (int i = 0; i < n; i++) {
+            int x = chain ? i : random.nextInt(1000);
+            tree.bstInsert(x);
+            single.bstInsert(x);
+        }
+
+        // Small batches and batches larger than the tree, as an array or a collection
+        for (int round = 0; round < 3; round++) {
+            Integer[] batch = new Integer[random.nextInt(random.nextBoolean() ? 50 : 1000)];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = random.nextInt(1200);
+                single.bstInsert(batch[i]);
+            }
+            if (random.nextBoolean()) {
+                tree.bstInsertAll(batch);
+            } else {
+                List<Integer> items = new ArrayList<>(Arrays.asList(batch));
+                tree.bstInsertAll(items);
+            }
+            Assert.assertEquals("bstInsertAll", single.toString2(), tree.toString2());
+            Assert.assertEquals("size", single.size(), tree.size());
+            if (balanced) {
+                Assert.assertTrue("AVL height", tree.height() <= avlBound(tree.size()));
+            }
+
+            Integer[] items = new Integer[random.nextInt(200)];
+            boolean[] found = new boolean[items.length];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = random.nextInt(1300) - 50;
+                found[i] = single.contains(items[i]);
+            }
+            Assert.assertArrayEquals("containsAll", found, tree.containsAll(items));
+        }
+    }
+
+    private static void checkFrozenTree(Random random) {
+        Tree<Integer> tree = new Tree<>("frozen", random.nextBoolean());
+        List<Integer> expected = new ArrayList<>();
+        for (int i = random.nextInt(500); i > 0; i--) {
+            int x = random.nextInt(1000);
+            tree.bstInsert(x);
+            expected.add(x);
+        }
+        Collections.sort(expected);
+        FrozenTree<Integer> frozen = tree.freeze();
+        tree.bstInsert(2000);  // Later changes do not reach the copy
+        Assert.assertEquals("size", expected.size(), frozen.size());
+
+        StringBuilder sb = new StringBuilder("frozen ");
+        expected.forEach(x -> sb.append(x).append(" "));
+        Assert.assertEquals("toString2", expected.isEmpty() ? "frozen Empty tree" : sb.toString(), frozen.toString2());
+        TreeSet<Integer> set = new TreeSet<>(expected);
+        for (int i = 0; i < 100; i++) {
+            int a = random.nextInt(1100) - 50;
+            int b = a + random.nextInt(300) - 50;
+            Assert.assertEquals("contains " + a, set.contains(a), frozen.contains(a));
+            Assert.assertEquals("ceiling " + a, set.ceiling(a), frozen.ceiling(a));
+            Assert.assertEquals("floor " + a, set.floor(a), frozen.floor(a));
+            List<Integer> inRange = new ArrayList<>();
+            for (Integer x : expected) {
+                if (a <= x && x <= b) inRange.add(x);
+            }
+            List<Integer> visited = new ArrayList<>();
+            frozen.forEachInRange(a, b, visited::add);
+            Assert.assertEquals("forEachInRange", inRange, visited);
+        }
+
+        // With distinct elements, lca is the one of a tree of the same complete shape
+        List<Integer> distinct = new ArrayList<>(set);
+        Integer[] slots = new Integer[distinct.size() + 1];
+        completeLayout(distinct, slots, 1, new int[1]);
+        List<Integer> preOrder = new ArrayList<>();
+        completePreOrder(slots, 1, preOrder);
+        Tree<Integer> complete = new Tree<>("complete");
+        complete.buildTreeTraversals(distinct.toArray(new Integer[0]), preOrder.toArray(new Integer[0]));
+        FrozenTree<Integer> distinctFrozen = new Tree<>(distinct.toArray(new Integer[0]), "distinct", true).freeze();
+        for (int i = 0; i < 100; i++) {
+            Integer a = random.nextInt(1100) - 50;
+            Integer b = random.nextInt(1100) - 50;
+            Tree.BinaryNode<Integer> ancestor = complete.lca(a, b);
+            Assert.assertEquals("lca", ancestor != null ? ancestor.element : null, distinctFrozen.lca(a, b));
+        }
+    }
+
+    /**
+     * Hand out sorted elements to the slots of a complete tree in order; the children of slot k are 2k and 2k + 1
+     */
+    private static void completeLayout(List<Integer> sorted, Integer[] slots, int k, int[] next) {
+        if (k >= slots.length) return;
+        completeLayout(sorted, slots, 2 * k, next);
+        slots[k] = sorted.get(next[0]++);
+        completeLayout(sorted, slots, 2 * k + 1, next);
+    }
+
+    private static void completePreOrder(Integer[] slots, int k, List<Integer> preOrder) {
+        if (k >= slots.length) return;
+        preOrder.add(slots[k]);
+        completePreOrder(slots, 2 * k, preOrder);
+        completePreOrder(slots, 2 * k + 1, preOrder);
+    }
+
+    private static void checkIteration(Random random) {
+        Tree<Integer> tree = new Tree<>("iterate", random.nextBoolean());
+        List<Integer> expected = new ArrayList<>();
+        for (int i = random.nextInt(2000); i > 0; i--) {
+            int x = random.nextInt(1000);
+            tree.bstInsert(x);
+            expected.add(x);
+        }
+        Collections.sort(expected);
+        Assert.assertEquals("iterator", expected, elements(tree));
+        Assert.assertEquals("stream", expected, tree.stream(false).collect(Collectors.toList()));
+        Assert.assertEquals("parallel stream", expected, tree.stream(true).collect(Collectors.toList()));
+
+        int a = random.nextInt(1000);
+        int b = a + random.nextInt(400) - 50;
+        Assert.assertEquals("subTree", expected.stream().filter(x -> a <= x && x <= b).collect(Collectors.toList()),
+                elements(tree.subTree(a, b)));
+        Assert.assertEquals("headTree", expected.stream().filter(x -> x <= b).collect(Collectors.toList()),
+                elements(tree.headTree(b)));
+        Assert.assertEquals("tailTree", expected.stream().filter(x -> a <= x).collect(Collectors.toList()),
+                elements(tree.tailTree(a)));
+
+        // A flipped tree iterates in reverse order, so sorting its stream must sort
+        tree.flip();
+        List<Integer> reversed = new ArrayList<>(expected);
+        Collections.reverse(reversed);
+        Assert.assertEquals("flipped", reversed, elements(tree));
+        Assert.assertEquals("sorted", expected, tree.stream(false).sorted().collect(Collectors.toList()));
+    }
+
+    private static void checkRangeQuery(Random random) {
+        boolean balanced = random.nextBoolean();
+        Tree<Integer> tree = new Tree<>("range", balanced);
+        if (!balanced && random.nextBoolean()) {
+            tree.enableOrderStatistics();
+        }
+        if (random.nextBoolean()) {
+            tree.enableMultiset();
+        }
+        List<Integer> expected = new ArrayList<>();
+        for (int i = random.nextInt(1000); i > 0; i--) {
+            int x = random.nextInt(1000);
+            tree.bstInsert(x);
+            expected.add(x);
+        }
+        Collections.sort(expected);
+        for (int i = 0; i < 100; i++) {
+            int a = random.nextInt(1100) - 50;
+            int b = random.nextInt(1100) - 50;
+            List<Integer> inRange = expected.stream().filter(x -> x >= a && x <= b).collect(Collectors.toList());
+            Tree<Integer>.RangeView view = tree.rangeQuery(a, b);
+            Assert.assertEquals("count", inRange.size(), view.count());
+            Assert.assertEquals("sum", inRange.stream().mapToLong(x -> x).sum(), view.sum(x -> x));
+            Assert.assertEquals("stream", inRange, view.stream(false).collect(Collectors.toList()));
+            Assert.assertEquals("parallel stream", inRange, view.stream(true).collect(Collectors.toList()));
+            Assert.assertEquals("headTree", expected.stream().filter(x -> x <= b).count(), tree.headTree(b).count());
+            Assert.assertEquals("tailTree", expected.stream().filter(x -> x >= a).count(), tree.tailTree(a).count());
+            Assert.assertEquals("headTree sum", expected.stream().filter(x -> x <= b).mapToLong(x -> x).sum(),
+                    tree.headTree(b).sum(x -> x));
+            Assert.assertEquals("tailTree sum", expected.stream().filter(x -> x >= a).mapToLong(x -> x).sum(),
+                    tree.tailTree(a).sum(x -> x));
+        }
+    }
+
+    private static void checkBSTTracking(Random random) {
+        boolean balanced = random.nextBoolean();
+        Tree<Integer> plain = new Tree<>("tracking", balanced);
+        Tree<Integer> tracked = new Tree<>("tracking", balanced);
+        boolean early = random.nextBoolean();
+        if (early) {
+            tracked.enableBSTTracking();
+        }
+        if (random.nextBoolean()) {
+            tracked.enableNodePool(100);
+        }
+        boolean bst = random.nextBoolean();
+        if (bst) {
+            for (int i = random.nextInt(500); i > 0; i--) {
+                int x = random.nextInt(1000);
+                plain.bstInsert(x);
+                tracked.bstInsert(x);
+            }
+        } else {
+            // Any shape, which is rarely a BST as a whole
+            int[] inOrder = random.ints(0, 1000).distinct().limit(random.nextInt(300)).toArray();
+            List<Integer> preOrder = new ArrayList<>();
+            randomShape(inOrder, 0, inOrder.length - 1, random, preOrder, new ArrayList<>());
+            plain.buildTreeTraversals(boxed(inOrder), preOrder.toArray(new Integer[0]));
+            tracked.buildTreeTraversals(boxed(inOrder), preOrder.toArray(new Integer[0]));
+        }
+        if (!early) {
+            tracked.enableBSTTracking();
+        }
+        if (bst && random.nextInt(4) == 0) {
+            plain.enableMultiset();
+            tracked.enableMultiset();
+        }
+        Assert.assertEquals("countBST", plain.countBST(), tracked.countBST());
+
+        for (int step = 0; step < 10; step++) {
+            switch (random.nextInt(bst ? 8 : 3)) {
+                case 0:
+                    plain.flip();
+                    tracked.flip();
+                    bst = false;
+                    break;
+                case 1:
+                    int sum = random.nextInt(5000);
+                    plain.pruneK(sum);
+                    tracked.pruneK(sum);
+                    break;
+                case 2:
+                    plain.balanceTree();
+                    tracked.balanceTree();
+                    break;
+                case 3:
+                    int a = random.nextInt(1000);
+                    int b = a + random.nextInt(600);
+                    plain.keepRange(a, b);
+                    tracked.keepRange(a, b);
+                    break;
+                case 4:
+                    plain.balanceTreeInPlace();
+                    tracked.balanceTreeInPlace();
+                    break;
+                case 5:
+                    Integer[] batch = new Integer[random.nextInt(200)];
+                    for (int i = 0; i < batch.length; i++) {
+                        batch[i] = random.nextInt(1000);
+                    }
+                    plain.bstInsertAll(batch);
+                    tracked.bstInsertAll(batch);
+                    break;
+                case 6:
+                    for (int i = random.nextInt(50); i > 0; i--) {
+                        int y = random.nextInt(1000);
+                        plain.remove(y);
+                        tracked.remove(y);
+                    }
+                    break;
+                default:
+                    int x = random.nextInt(1000);
+                    plain.bstInsert(x);
+                    tracked.bstInsert(x);
+                    break;
+            }
+            Assert.assertEquals("shape", plain.toString(), tracked.toString());
+            Assert.assertEquals("countBST", plain.countBST(), tracked.countBST());
+        }
+    }
+
+    private static void checkNodePool(Random random) {
+        Tree<Integer> tree = new Tree<>("pool");
+        NodePool<Integer> pool = tree.enableNodePool(1000);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            int x = random.nextInt(1000);
+            tree.bstInsert(x);
+            expected.add(x);
+        }
+        tree.keepRange(250, 750);
+        expected.removeIf(x -> x < 250 || x > 750);
+        int freed = pool.size();
+        Assert.assertTrue("freed", freed > 0);
+        for (int i = 0; i < freed; i++) {
+            int x = random.nextInt(1000);
+            tree.bstInsert(x);
+            expected.add(x);
+        }
+        Collections.sort(expected);
+        Assert.assertEquals("elements", expected, elements(tree));
+        Assert.assertEquals("hits", freed, pool.hits());
+        Assert.assertEquals("pool", 0, pool.size());
+
+        // Recycled nodes build the same trees as new ones
+        boolean balanced = random.nextBoolean();
+        Tree<Integer> pooled = new Tree<>("pool", balanced);
+        Tree<Integer> plain = new Tree<>("pool", balanced);
+        pool = pooled.enableNodePool(random.nextInt(300));
+        for (int step = 0; step < 20; step++) {
+            switch (random.nextInt(5)) {
+                case 0:
+                    int sum = random.nextInt(8000);
+                    pooled.pruneK(sum);
+                    plain.pruneK(sum);
+                    break;
+                case 1:
+                    int a = random.nextInt(1000);
+                    int b = a + random.nextInt(700);
+                    pooled.keepRange(a, b);
+                    plain.keepRange(a, b);
+                    break;
+                case 2:
+                    pooled.balanceTree();
+                    plain.balanceTree();
+                    break;
+                case 3:
+                    Integer[] batch = new Integer[random.nextInt(200)];
+                    for (int i = 0; i < batch.length; i++) {
+                        batch[i] = random.nextInt(1000);
+                    }
+                    pooled.bstInsertAll(batch);
+                    plain.bstInsertAll(batch);
+                    break;
+                default:
+                    for (int i = random.nextInt(100); i > 0; i--) {
+                        int x = random.nextInt(1000);
+                        pooled.bstInsert(x);
+                        plain.bstInsert(x);
+                    }
+                    break;
+            }
+            Assert.assertEquals("shape", plain.toString(), pooled.toString());
+            Assert.assertTrue("capacity", pool.size() <= pool.capacity());
+        }
+    }
+
+    private static void checkRemove(Random random, boolean balanced) {
+        for (int trial = 0; trial < 50; trial++) {
+            Tree<Integer> tree = new Tree<>("remove", balanced);
+            Tree<Integer> plain = new Tree<>("remove", balanced);
+            boolean tracked = random.nextBoolean();
+            if (tracked) {
+                tree.enableBSTTracking();
+            }
+            if (random.nextBoolean()) {
+                tree.enableNodePool(100);
+            }
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                int x = random.nextInt(100);
+                tree.bstInsert(x);
+                plain.bstInsert(x);
+                expected.add(x);
+            }
+            Collections.sort(expected);
+
+            for (int i = 0; i < 100; i++) {
+                Integer x = random.nextInt(120);
+                Assert.assertEquals("remove " + x, expected.remove(x), tree.remove(x));
+                plain.remove(x);
+            }
+            Integer[] batch = new Integer[random.nextInt(150)];
+            int removed = 0;
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = random.nextInt(120);
+            }
+            for (Integer x : batch) {
+                if (expected.remove(x)) removed++;
+            }
+            Assert.assertEquals("removeAll", removed, tree.removeAll(Arrays.asList(batch)));
+            plain.removeAll(batch);
+            Assert.assertEquals("elements", expected, elements(tree));
+            Assert.assertEquals("size", expected.size(), tree.size());
+            Assert.assertEquals("countBST", plain.countBST(), tree.countBST());
+            if (balanced) {
+                Assert.assertTrue("AVL height", tree.height() <= avlBound(expected.size()));
+            }
+        }
+    }
+
+    private static void checkMultiset(Random random, boolean balanced) {
+        for (int trial = 0; trial < 50; trial++) {
+            Tree<Integer> tree = new Tree<>("multiset", balanced);
+            tree.enableOrderStatistics();
+            TreeMetrics metrics = tree.enableMetrics();
+            List<Integer> expected = new ArrayList<>();
+            for (int i = random.nextInt(100); i > 0; i--) {
+                // Repeats inserted before the mode is on are merged
+                int x = random.nextInt(30);
+                tree.bstInsert(x);
+                expected.add(x);
+            }
+            tree.enableMultiset();
+            Assert.assertEquals("merging records no removes", 0, metrics.getRemove().getCount());
+            for (int i = 0; i < 400; i++) {
+                Integer x = random.nextInt(30);
+                if (random.nextInt(3) == 0) {
+                    Assert.assertEquals("remove " + x, expected.remove(x), tree.remove(x));
+                } else {
+                    tree.bstInsert(x);
+                    expected.add(x);
+                }
+            }
+            Collections.sort(expected);
+            Assert.assertEquals("elements", expected, elements(tree));
+            Assert.assertEquals("size", expected.size(), tree.size());
+            Assert.assertEquals("sumAll", expected.stream().mapToInt(x -> x).sum(), tree.sumAll().intValue());
+            for (int k = 0; k < expected.size(); k++) {
+                Assert.assertEquals("select " + k, expected.get(k), tree.select(k));
+            }
+            for (int x = -1; x <= 30; x++) {
+                int below = x;
+                Assert.assertEquals("rank " + x, expected.stream().filter(y -> y < below).count(), tree.rank(x));
+            }
+            Assert.assertEquals("countInRange", expected.stream().filter(y -> 10 <= y && y <= 20).count(),
+                    tree.countInRange(10, 20));
+        }
+    }
+
+    private static void checkMultisetSaveLoad(Random random) throws IOException {
+        Path file = Files.createTempFile("tree", ".bin");
+        try {
+            // A multiset with many repeats, into a multiset and a plain tree
+            Tree<Integer> multiset = new Tree<>("multiset", true);
+            multiset.enableMultiset();
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                int x = random.nextInt(5);
+                multiset.bstInsert(x);
+                expected.add(x);
+            }
+            Collections.sort(expected);
+            multiset.save(file, TreeCodec.INTEGER);
+            Tree<Integer> counted = new Tree<>("counted", true);
+            counted.enableMultiset();
+            counted.load(file, TreeCodec.INTEGER);
+            Assert.assertEquals("multiset elements", expected, elements(counted));
+            Assert.assertTrue("multiset height", counted.height() <= avlBound(5));
+            Tree<Integer> plain = new Tree<>("plain", true);
+            plain.load(file, TreeCodec.INTEGER);
+            Assert.assertEquals("expanded elements", expected, elements(plain));
+            Assert.assertTrue("expanded height", plain.height() <= avlBound(expected.size()));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void checkPathSums(Random random) {
+        // Any shape with negative elements too; weights beyond int range
+        int[] inOrder = random.ints(-1000, 1000).distinct().limit(random.nextInt(200)).toArray();
+        List<Integer> preOrder = new ArrayList<>();
+        randomShape(inOrder, 0, inOrder.length - 1, random, preOrder, new ArrayList<>());
+        Tree<Integer> tree = new Tree<>("sums");
+        tree.buildTreeTraversals(boxed(inOrder), preOrder.toArray(new Integer[0]));
+        List<List<Integer>> paths = new ArrayList<>();
+        List<Integer> inOrderList = new ArrayList<>();
+        for (int x : inOrder) {
+            inOrderList.add(x);
+        }
+        shapePaths(inOrderList, preOrder, new ArrayList<>(), paths);
+
+        long scale = 10_000_000L;
+        long best = Long.MIN_VALUE;
+        for (List<Integer> path : paths) {
+            long sum = path.stream().mapToLong(x -> x * scale).sum();
+            best = Math.max(best, sum);
+            Assert.assertTrue("hasPathSum", tree.hasPathSum(sum, x -> x * scale));
+        }
+        Assert.assertEquals("maxPathSum", best, tree.maxPathSum(x -> x * scale));
+        Assert.assertFalse("hasPathSum above the best", tree.hasPathSum(best + 1, x -> x * scale));
+        if (!paths.isEmpty()) {
+            Assert.assertEquals("maxPathSumDouble", best / (double) scale / 2,
+                    tree.maxPathSumDouble(x -> x / 2.0), 1e-9);
+        }
+        long total = 0;
+        for (int x : inOrder) {
+            total += x * scale;
+        }
+        Assert.assertEquals("sumAll", total, tree.sumAll(x -> x * scale));
+        Assert.assertEquals("sumAllDouble", total / (double) scale / 4, tree.sumAllDouble(x -> x / 4.0), 1e-9);
+
+        // The three pruneK give the same tree for whole number weights
+        int k = random.nextInt(3000) - 1000;
+        Tree<Integer> pruned = new Tree<>("sums");
+        pruned.buildTreeTraversals(boxed(inOrder), preOrder.toArray(new Integer[0]));
+        Tree<Integer> prunedDouble = new Tree<>("sums");
+        prunedDouble.buildTreeTraversals(boxed(inOrder), preOrder.toArray(new Integer[0]));
+        PersistentTree<Integer> version = tree.snapshot();
+        Tree<Integer> versionPruned = version.toTree("sums");
+        versionPruned.pruneK(k);
+        Assert.assertEquals("PersistentTree pruneK", versionPruned.toString2(),
+                version.pruneK(k * scale, x -> x * scale).toTree("sums").toString2());
+        tree.pruneK(k);
+        pruned.pruneK(k * scale, x -> x * scale);
+        prunedDouble.pruneKDouble(k / 2.0, x -> x / 2.0);
+        Assert.assertEquals("pruneK", tree.toString(), pruned.toString());
+        Assert.assertEquals("pruneKDouble", tree.toString(), prunedDouble.toString());
+    }
+
+    private static void checkLca(Random random) {
+        Tree<Integer> tree = new Tree<>("lca");
+        Integer[] keys = new Integer[300];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+        }
+        Collections.shuffle(Arrays.asList(keys), random);
+        for (Integer x : keys) {
+            tree.bstInsert(x);
+        }
+        LcaIndex<Integer> index = tree.lcaIndex();
+        Integer[] first = new Integer[1000];
+        Integer[] second = new Integer[1000];
+        for (int i = 0; i < first.length; i++) {
+            first[i] = random.nextInt(300);
+            second[i] = random.nextInt(300);
+        }
+        List<Integer> all = tree.lcaAll(first, second);
+        for (int i = 0; i < first.length; i++) {
+            Integer expected = tree.lca(first[i], second[i]).element;
+            Assert.assertEquals("lcaIndex", expected, index.lca(first[i], second[i]));
+            Assert.assertEquals("lcaAll", expected, all.get(i));
+        }
+        Assert.assertEquals("missing", null, index.lca(0, 1000));
+    }
+
+    private static void checkLcaShapes(Random random) {
+        // Any shape, where lca's BST walk does not apply
+        int[] inOrder = random.ints(0, 1000).distinct().limit(1 + random.nextInt(300)).toArray();
+        List<Integer> preOrder = new ArrayList<>();
+        randomShape(inOrder, 0, inOrder.length - 1, random, preOrder, new ArrayList<>());
+        Tree<Integer> tree = new Tree<>("shape");
+        tree.buildTreeTraversals(boxed(inOrder), preOrder.toArray(new Integer[0]));
+        if (random.nextBoolean()) {
+            tree.flip();  // Mirroring keeps every ancestor
+        }
+
+        // Path from the root to each element, from the root to leaf paths
+        List<Integer> inOrderList = new ArrayList<>();
+        for (int x : inOrder) {
+            inOrderList.add(x);
+        }
+        List<List<Integer>> paths = new ArrayList<>();
+        shapePaths(inOrderList, preOrder, new ArrayList<>(), paths);
+        Map<Integer, List<Integer>> rootPath = new HashMap<>();
+        for (List<Integer> path : paths) {
+            for (int i = 0; i < path.size(); i++) {
+                rootPath.put(path.get(i), path.subList(0, i + 1));
+            }
+        }
+
+        LcaIndex<Integer> index = tree.lcaIndex();
+        Integer[] first = new Integer[200];
+        Integer[] second = new Integer[200];
+        for (int i = 0; i < first.length; i++) {
+            first[i] = inOrder[random.nextInt(inOrder.length)];
+            second[i] = inOrder[random.nextInt(inOrder.length)];
+        }
+        List<Integer> all = tree.lcaAll(first, second);
+        for (int i = 0; i < first.length; i++) {
+            List<Integer> a = rootPath.get(first[i]);
+            List<Integer> b = rootPath.get(second[i]);
+            int common = 0;
+            while (common < a.size() && common < b.size() && a.get(common).equals(b.get(common))) {
+                common++;
+            }
+            Integer expected = a.get(common - 1);
+            Assert.assertEquals("lcaIndex", expected, index.lca(first[i], second[i]));
+            Assert.assertEquals("lcaAll", expected, all.get(i));
+        }
+    }
+
+    private static void checkMetrics() {
+        // A chain: inserting i into 0 .. i - 1 compares with each of them
+        Tree<Integer> chain = new Tree<>("metrics");
+        TreeMetrics metrics = chain.enableMetrics();
+        Assert.assertTrue("metrics", metrics == chain.metrics());
+        int n = 1000;
+        for (int i = 0; i < n; i++) {
+            chain.bstInsert(i);
+        }
+        TreeMetrics.OperationStats insert = metrics.getInsert();
+        Assert.assertEquals("insert count", n, insert.getCount());
+        Assert.assertEquals("insert max comparisons", n - 1, insert.getMaxComparisons());
+        Assert.assertEquals("insert mean comparisons", (n - 1) / 2.0, insert.getMeanComparisons(), 1e-9);
+        Assert.assertEquals("size without order statistics", -1, metrics.getSize());
+        Assert.assertEquals("height without order statistics", -1, metrics.getHeight());
+        for (int i = 0; i < 10; i++) {
+            chain.contains(i);
+        }
+        chain.remove(n + 1);
+        Assert.assertEquals("contains count", 10, metrics.getContains().getCount());
+        Assert.assertEquals("remove count", 1, metrics.getRemove().getCount());
+        Assert.assertEquals("rotations", 0, metrics.getRotations());
+        metrics.reset();
+        Assert.assertEquals("reset", 0, insert.getCount());
+        Assert.assertEquals("reset max comparisons", 0, insert.getMaxComparisons());
+
+        // A balanced tree rotates, and keeps its size and height
+        Tree<Integer> balanced = new Tree<>("metrics", true);
+        metrics = balanced.enableMetrics();
+        for (int i = 0; i < n; i++) {
+            balanced.bstInsert(i);
+        }
+        Assert.assertTrue("rotations", metrics.getRotations() > 0);
+        Assert.assertTrue("balanced comparisons", metrics.getInsert().getMaxComparisons() <= balanced.height() + 1);
+        Assert.assertEquals("size", n, metrics.getSize());
+        Assert.assertEquals("height", balanced.height(), metrics.getHeight());
+        balanced.balanceTree();
+        Assert.assertEquals("rebuilds", 1, metrics.getRebuilds());
+    }
+
+    private static void checkHistogram(Random random) {
+        TreeMetrics.OperationStats stats = new TreeMetrics.OperationStats();
+        List<Long> latencies = new ArrayList<>();
+        for (int i = 1 + random.nextInt(5000); i > 0; i--) {
+            // Spread over many powers of two
+            long nanos = (long) Math.exp(random.nextDouble() * 25);
+            stats.record(nanos, 0);
+            latencies.add(nanos);
+        }
+        Collections.sort(latencies);
+        Assert.assertEquals("max", (long) latencies.get(latencies.size() - 1), stats.getMaxNanos());
+        for (double fraction : new double[] {0.5, 0.9, 0.99, 0.999, 1}) {
+            long exact = latencies.get((int) Math.ceil(fraction * latencies.size()) - 1);
+            long reported = stats.percentileNanos(fraction);
+            Assert.assertTrue("percentile " + fraction, exact <= reported && reported <= exact + exact / 8);
+        }
+    }
+
+    private static void checkMetricsMXBean() throws JMException {
+        Tree<Integer> tree = new Tree<>("metrics", true);
+        TreeMetrics metrics = tree.enableMetrics();
+        for (int i = 0; i < 100; i++) {
+            tree.bstInsert(i);
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("TreeTester:type=TreeMetrics,name=metrics");
+        server.registerMBean(metrics, name);
+        try {
+            CompositeData insert = (CompositeData) server.getAttribute(name, "Insert");
+            Assert.assertEquals("Insert count", 100L, insert.get("count"));
+            Assert.assertEquals("Size", 100, server.getAttribute(name, "Size"));
+            server.invoke(name, "reset", null, null);
+            Assert.assertEquals("reset", 0, metrics.getInsert().getCount());
+        } finally {
+            server.unregisterMBean(name);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,16 @@
+/**
+ * Exception class for access in empty containers
+ * such as the stacks that the iterative traversals use.
+ */
+class UnderflowException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Construct this exception object.
+     *
+     * @param message the error message.
+     */
+    public UnderflowException(String message) {
+        super(message);
+    }
+}